@@ -0,0 +1,19 @@
+package org.example;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+
+/**
+ * Analyzer shared by extraction, indexing and querying. Lucene analyzers are thread-safe
+ * and keep their tokenizer/filter chain per thread, so one instance lets every thread
+ * reuse its token-stream components instead of rebuilding them per file or query.
+ */
+final class Analyzers {
+    private static final Analyzer STANDARD = new StandardAnalyzer();
+
+    private Analyzers() {}
+
+    static Analyzer standard() {
+        return STANDARD;
+    }
+}
@@ -0,0 +1,483 @@
+package org.example;
+
+import org.apache.commons.math3.ml.clustering.CentroidCluster;
+import org.apache.commons.math3.ml.clustering.DoublePoint;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Versioned binary file holding a clustering: the index generation it was computed on, the
+ * centroids, the documents of every cluster (doc id, file name, TF-IDF vector) and optionally
+ * the vocabulary behind the vector dimensions. Doc ids are only meaningful in that generation.
+ * The file is memory-mapped by {@link #open(Path)} or read onto the heap by {@link #read(Path)};
+ * values are decoded on access, so a reader only touches the parts it asks for. Callers that only
+ * need the centroids use {@link #readCentroids(Path)}, which holds no mapping or file handle.
+ * Files are written to a temporary file and moved into place, so a reader sees the old or the
+ * new file, never a partial one.
+ * <p>
+ * Layout, big-endian, every section at a fixed offset computed from the header:
+ * <pre>
+ * header        int magic "IRCL", int version, int numDocs, int dimension,
+ *               int numClusters, int numTerms, long nnz                      (32 bytes)
+ *               int length, then UTF-8 bytes of the generation name          (version 2 and later)
+ * centroids     double[numClusters * dimension]
+ * values        double[nnz]              non-zero vector entries, row by row
+ * clusterStart  int[numClusters + 1]     documents of cluster c are [clusterStart[c], clusterStart[c+1])
+ * docIds        int[numDocs]
+ * rowStart      int[numDocs + 1]         entries of document i are [rowStart[i], rowStart[i+1])
+ * columns       int[nnz]                 dimension of each entry in values
+ * fileNames     int[numDocs + 1] byte offsets, then UTF-8 bytes
+ * terms         int[numTerms + 1] byte offsets, then UTF-8 bytes
+ * </pre>
+ * Readers reject files with another magic, an unknown version or negative counts.
+ */
+public final class ClusterStore {
+    static final int MAGIC = 0x4952434C; // "IRCL"
+    static final int VERSION = 2;
+    private static final int HEADER_SIZE = 32;
+
+    private final String generation;
+    private final int numDocs;
+    private final int dimension;
+    private final int numClusters;
+    private final int numTerms;
+    private final DoubleBuffer centroids;
+    private final DoubleBuffer values;
+    private final IntBuffer clusterStart;
+    private final IntBuffer docIds;
+    private final IntBuffer rowStart;
+    private final IntBuffer columns;
+    private final StringTable fileNames;
+    private final StringTable terms;
+
+    private ClusterStore(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < HEADER_SIZE) {
+            throw new IOException("Not a cluster file");
+        }
+        checkHeader(buffer.getInt(0), buffer.getInt(4), buffer.getInt(8), buffer.getInt(12),
+                buffer.getInt(16), buffer.getInt(20), buffer.getLong(24));
+        numDocs = buffer.getInt(8);
+        dimension = buffer.getInt(12);
+        numClusters = buffer.getInt(16);
+        numTerms = buffer.getInt(20);
+        long nnz = buffer.getLong(24);
+
+        long position = HEADER_SIZE;
+        if (buffer.getInt(4) >= 2) {
+            int length = slice(buffer, position, Integer.BYTES).getInt();
+            ByteBuffer name = slice(buffer, position + Integer.BYTES, length);
+            byte[] bytes = new byte[length];
+            name.get(bytes);
+            generation = new String(bytes, StandardCharsets.UTF_8);
+            position += Integer.BYTES + length;
+        } else {
+            generation = "";
+        }
+        centroids = slice(buffer, position, (long) numClusters * dimension * Double.BYTES).asDoubleBuffer();
+        position += (long) numClusters * dimension * Double.BYTES;
+        values = slice(buffer, position, nnz * Double.BYTES).asDoubleBuffer();
+        position += nnz * Double.BYTES;
+        clusterStart = slice(buffer, position, (numClusters + 1L) * Integer.BYTES).asIntBuffer();
+        position += (numClusters + 1L) * Integer.BYTES;
+        docIds = slice(buffer, position, (long) numDocs * Integer.BYTES).asIntBuffer();
+        position += (long) numDocs * Integer.BYTES;
+        rowStart = slice(buffer, position, (numDocs + 1L) * Integer.BYTES).asIntBuffer();
+        position += (numDocs + 1L) * Integer.BYTES;
+        columns = slice(buffer, position, nnz * Integer.BYTES).asIntBuffer();
+        position += nnz * Integer.BYTES;
+        fileNames = new StringTable(buffer, (int) position, numDocs);
+        terms = new StringTable(buffer, fileNames.end, numTerms);
+    }
+
+    // Same checks for every reader; anything negative means a damaged or foreign file
+    private static void checkHeader(int magic, int version, int numDocs, int dimension, int numClusters,
+                                    int numTerms, long nnz) throws IOException {
+        if (magic != MAGIC) {
+            throw new IOException("Not a cluster file");
+        }
+        if (version < 1 || version > VERSION) {
+            throw new IOException("Unsupported cluster file version: " + version);
+        }
+        if (numDocs < 0 || dimension < 0 || numClusters < 0 || numTerms < 0 || nnz < 0) {
+            throw new IOException("Not a cluster file");
+        }
+    }
+
+    /**
+     * Maps a cluster file into memory. The mapping lives until the store is garbage collected,
+     * which keeps the file from being replaced on Windows; use {@link #read(Path)} for stores
+     * that are only converted and dropped.
+     * @param file Cluster file
+     * @return Store backed by the mapped file
+     * @throws IOException If the file cannot be read or is not a supported cluster file
+     */
+    public static ClusterStore open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Cluster file too large to map: " + file);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new ClusterStore(buffer);
+        }
+    }
+
+    /**
+     * Reads a cluster file onto the heap; the file is closed when this returns
+     * @param file Cluster file
+     * @return Store backed by a copy of the file
+     * @throws IOException If the file cannot be read or is not a supported cluster file
+     */
+    public static ClusterStore read(Path file) throws IOException {
+        return new ClusterStore(ByteBuffer.wrap(Files.readAllBytes(file)));
+    }
+
+    /**
+     * Reads only the header and the centroids, e.g. to label the clusters of search hits
+     * @param file Cluster file
+     * @return Centroid of every cluster
+     * @throws IOException If the file cannot be read or is not a supported cluster file
+     */
+    public static double[][] readCentroids(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            int magic = in.readInt();
+            int version = in.readInt();
+            int numDocs = in.readInt();
+            int dimension = in.readInt();
+            int numClusters = in.readInt();
+            int numTerms = in.readInt();
+            long nnz = in.readLong();
+            checkHeader(magic, version, numDocs, dimension, numClusters, numTerms, nnz);
+            long headerSize = HEADER_SIZE;
+            if (version >= 2) {
+                int length = in.readInt();
+                if (length < 0) {
+                    throw new IOException("Not a cluster file");
+                }
+                headerSize += Integer.BYTES + length;
+                if (in.skip(length) != length) {
+                    throw new IOException("Truncated cluster file");
+                }
+            }
+            if ((long) numClusters * dimension * Double.BYTES > Files.size(file) - headerSize) {
+                throw new IOException("Truncated cluster file");
+            }
+
+            double[][] centroids = new double[numClusters][dimension];
+            for (double[] centroid : centroids) {
+                for (int i = 0; i < dimension; i++) {
+                    centroid[i] = in.readDouble();
+                }
+            }
+            return centroids;
+        }
+    }
+
+    /**
+     * Writes a clustering. Every point must be a {@link DocumentPoint} whose vector has the
+     * centroids' dimension; clusters from {@link QueryHandler#browse(String)} carry no vectors
+     * and are rejected.
+     * @param file Destination, replaced if it exists
+     * @param clusters Clusters to store
+     * @param vocabulary Term of every vector dimension, or an empty list if unknown
+     * @param generation Name of the index generation the doc ids belong to
+     * @throws IOException If the file cannot be written
+     * @throws IllegalArgumentException If a point has no document or the wrong dimension, or the
+     *         vocabulary does not match the dimension
+     */
+    public static void write(Path file, List<? extends CentroidCluster<? extends DoublePoint>> clusters,
+                             List<String> vocabulary, String generation) throws IOException {
+        int dimension = clusters.isEmpty() ? 0 : clusters.get(0).getCenter().getPoint().length;
+        double[][] centroids = new double[clusters.size()][];
+        List<List<Row>> members = new ArrayList<>(clusters.size());
+        for (int c = 0; c < clusters.size(); c++) {
+            centroids[c] = clusters.get(c).getCenter().getPoint();
+            List<Row> rows = new ArrayList<>();
+            for (DoublePoint point : clusters.get(c).getPoints()) {
+                if (!(point instanceof DocumentPoint)) {
+                    throw new IllegalArgumentException("Point without document: " + point);
+                }
+                if (point.getPoint().length != dimension) {
+                    throw new IllegalArgumentException("Point " + point + " has " + point.getPoint().length
+                            + " dimensions, centroids have " + dimension);
+                }
+                DocumentPoint document = (DocumentPoint) point;
+                rows.add(new Row(document.getDocId(), document.getFileName(), SparseVector.of(document.getPoint())));
+            }
+            members.add(rows);
+        }
+        write(file, centroids, members, vocabulary, generation);
+    }
+
+    /**
+     * Writes a clustering whose document vectors are already sparse
+     * @param file Destination, replaced if it exists
+     * @param centroids Dense centroid of every cluster
+     * @param members Documents of every cluster
+     * @param vocabulary Term of every vector dimension, or an empty list if unknown
+     * @param generation Name of the index generation the doc ids belong to
+     * @throws IOException If the file cannot be written
+     * @throws IllegalArgumentException If a centroid, vector or the vocabulary does not fit the dimension
+     */
+    static void write(Path file, double[][] centroids, List<List<Row>> members, List<String> vocabulary,
+                      String generation) throws IOException {
+        int dimension = centroids.length == 0 ? 0 : centroids[0].length;
+        if (!vocabulary.isEmpty() && vocabulary.size() != dimension) {
+            throw new IllegalArgumentException("Vocabulary of " + vocabulary.size() + " terms for "
+                    + dimension + " dimensions");
+        }
+        for (double[] centroid : centroids) {
+            if (centroid.length != dimension) {
+                throw new IllegalArgumentException("Centroids of " + centroid.length + " and " + dimension + " dimensions");
+            }
+        }
+        List<Row> rows = new ArrayList<>();
+        int[] starts = new int[centroids.length + 1];
+        for (int c = 0; c < centroids.length; c++) {
+            rows.addAll(members.get(c));
+            starts[c + 1] = rows.size();
+        }
+        long nnz = 0;
+        for (Row row : rows) {
+            for (int i = 0; i < row.vector.size(); i++) {
+                if (row.vector.index(i) < 0 || row.vector.index(i) >= dimension) {
+                    throw new IllegalArgumentException("Document " + row.docId + " has dimension " + row.vector.index(i)
+                            + ", centroids have " + dimension);
+                }
+            }
+            nnz += row.vector.size();
+        }
+
+        // Readers of the old file keep it until the new one is complete and moved over it
+        Path directory = file.toAbsolutePath().getParent();
+        Path pending = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+        try {
+            writeRows(pending, centroids, rows, starts, nnz, dimension, vocabulary, generation);
+            Files.move(pending, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(pending);
+        }
+    }
+
+    private static void writeRows(Path file, double[][] centroids, List<Row> rows, int[] starts, long nnz,
+                                  int dimension, List<String> vocabulary, String generation) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(rows.size());
+            out.writeInt(dimension);
+            out.writeInt(centroids.length);
+            out.writeInt(vocabulary.size());
+            out.writeLong(nnz);
+            byte[] name = generation.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(name.length);
+            out.write(name);
+
+            for (double[] centroid : centroids) {
+                for (double value : centroid) {
+                    out.writeDouble(value);
+                }
+            }
+            for (Row row : rows) {
+                for (int i = 0; i < row.vector.size(); i++) {
+                    out.writeDouble(row.vector.value(i));
+                }
+            }
+            for (int start : starts) {
+                out.writeInt(start);
+            }
+            for (Row row : rows) {
+                out.writeInt(row.docId);
+            }
+            int end = 0;
+            out.writeInt(end);
+            for (Row row : rows) {
+                end += row.vector.size();
+                out.writeInt(end);
+            }
+            for (Row row : rows) {
+                for (int i = 0; i < row.vector.size(); i++) {
+                    out.writeInt(row.vector.index(i));
+                }
+            }
+            List<String> names = new ArrayList<>();
+            for (Row row : rows) {
+                names.add(row.fileName == null ? "" : row.fileName);
+            }
+            StringTable.write(out, names);
+            StringTable.write(out, vocabulary);
+        }
+    }
+
+    /*
+    * @Output Index generation the doc ids belong to, empty for files written before version 2
+    * */
+    public String generation() {
+        return generation;
+    }
+
+    public int numDocs() {
+        return numDocs;
+    }
+
+    public int dimension() {
+        return dimension;
+    }
+
+    public int numClusters() {
+        return numClusters;
+    }
+
+    public double[] centroid(int cluster) {
+        double[] centroid = new double[dimension];
+        for (int i = 0; i < dimension; i++) {
+            centroid[i] = centroids.get(cluster * dimension + i);
+        }
+        return centroid;
+    }
+
+    /*
+    * @param cluster Cluster number
+    * @Output Range [from, to) of the document indexes in that cluster
+    * */
+    public int clusterStart(int cluster) {
+        return clusterStart.get(cluster);
+    }
+
+    public int clusterEnd(int cluster) {
+        return clusterStart.get(cluster + 1);
+    }
+
+    public int docId(int doc) {
+        return docIds.get(doc);
+    }
+
+    public String fileName(int doc) {
+        return fileNames.get(doc);
+    }
+
+    public double[] vector(int doc) {
+        double[] vector = new double[dimension];
+        for (int i = rowStart.get(doc); i < rowStart.get(doc + 1); i++) {
+            vector[columns.get(i)] = values.get(i);
+        }
+        return vector;
+    }
+
+    /*
+    * @Output Term of every dimension, empty if the file was written without vocabulary
+    * */
+    public List<String> vocabulary() {
+        List<String> vocabulary = new ArrayList<>(numTerms);
+        for (int i = 0; i < numTerms; i++) {
+            vocabulary.add(terms.get(i));
+        }
+        return vocabulary;
+    }
+
+    /*
+    * Rebuilds the clusters in memory, with a DocumentPoint per stored document
+    * */
+    public List<CentroidCluster<DoublePoint>> toClusters() {
+        List<CentroidCluster<DoublePoint>> clusters = new ArrayList<>(numClusters);
+        for (int c = 0; c < numClusters; c++) {
+            CentroidCluster<DoublePoint> cluster = new CentroidCluster<>(new DoublePoint(centroid(c)));
+            for (int doc = clusterStart(c); doc < clusterEnd(c); doc++) {
+                cluster.addPoint(new DocumentPoint(docId(doc), fileName(doc), vector(doc)));
+            }
+            clusters.add(cluster);
+        }
+        return clusters;
+    }
+
+    // One stored document: its id, file name and non-zero vector entries
+    static final class Row {
+        final int docId;
+        final String fileName;
+        final SparseVector vector;
+
+        Row(int docId, String fileName, SparseVector vector) {
+            this.docId = docId;
+            this.fileName = fileName;
+            this.vector = vector;
+        }
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, long position, long length) throws IOException {
+        if (position < 0 || length < 0 || position + length > buffer.limit()) {
+            throw new IOException("Truncated cluster file");
+        }
+        ByteBuffer slice = buffer.duplicate();
+        slice.position((int) position);
+        slice.limit((int) (position + length));
+        return slice.slice();
+    }
+
+    // int[count + 1] byte offsets followed by the UTF-8 bytes of all strings
+    private static final class StringTable {
+        private final IntBuffer offsets;
+        private final ByteBuffer bytes;
+        private final int end;
+
+        StringTable(ByteBuffer buffer, int position, int count) throws IOException {
+            offsets = slice(buffer, position, (count + 1L) * Integer.BYTES).asIntBuffer();
+            int start = position + (count + 1) * Integer.BYTES;
+            bytes = slice(buffer, start, offsets.get(count));
+            end = start + offsets.get(count);
+        }
+
+        String get(int i) {
+            byte[] value = new byte[offsets.get(i + 1) - offsets.get(i)];
+            ByteBuffer duplicate = bytes.duplicate();
+            duplicate.position(offsets.get(i));
+            duplicate.get(value);
+            return new String(value, StandardCharsets.UTF_8);
+        }
+
+        static void write(DataOutputStream out, List<String> strings) throws IOException {
+            List<byte[]> encoded = new ArrayList<>(strings.size());
+            int offset = 0;
+            out.writeInt(offset);
+            for (String string : strings) {
+                byte[] value = string.getBytes(StandardCharsets.UTF_8);
+                encoded.add(value);
+                offset += value.length;
+                out.writeInt(offset);
+            }
+            for (byte[] value : encoded) {
+                out.write(value);
+            }
+        }
+    }
+
+    /*
+    * Usage: ClusterStore <file>
+    * Prints one line per document (cluster, doc id, file name), e.g. to diff two clusterings.
+    * */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: ClusterStore <file>");
+            return;
+        }
+        ClusterStore store = open(Paths.get(args[0]));
+        System.out.println("# generation " + store.generation() + ", " + store.numDocs() + " documents, "
+                + store.numClusters() + " clusters, " + store.dimension() + " dimensions");
+        for (int c = 0; c < store.numClusters(); c++) {
+            for (int doc = store.clusterStart(c); doc < store.clusterEnd(c); doc++) {
+                System.out.println(c + "\t" + store.docId(doc) + "\t" + store.fileName(doc));
+            }
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package org.example;
+
+import org.apache.lucene.document.DoubleDocValuesField;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.IOUtils;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Offline clustering stage, run on demand after indexing. Clusters the whole corpus (all
+ * shards together, using global TF-IDF statistics) with {@link SparseKMeans}, stores every
+ * document's cluster id and centroid similarity as doc values, and persists the full clustering (centroids, vectors,
+ * vocabulary) in the live index generation as a {@link ClusterStore} file.
+ * {@link QueryHandler#browse(String)} then groups hits by these assignments without
+ * running k-means per query.
+ */
+public class CorpusClusterer {
+    static final String CLUSTERS_FILE = "clusters.bin";
+
+    private final String indexPath;
+    private final int k;
+
+    public CorpusClusterer(int k) {
+        this("index", k);
+    }
+
+    public CorpusClusterer(String indexPath, int k) {
+        this.indexPath = indexPath;
+        this.k = k;
+    }
+
+    /**
+     * Clusters the corpus and writes the assignments back into the index
+     * @throws IOException If the index cannot be read or updated
+     */
+    public void cluster() throws IOException {
+        Path generation = IndexLayout.current(Paths.get(indexPath));
+        List<Path> shards = IndexLayout.indexDirectories(generation);
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        IndexReader[] subReaders = new IndexReader[shards.size()];
+        try {
+            for (int i = 0; i < subReaders.length; i++) {
+                subReaders[i] = DirectoryReader.open(FSDirectory.open(shards.get(i)));
+            }
+            int[] starts = new int[subReaders.length + 1];
+            for (int i = 0; i < subReaders.length; i++) {
+                starts[i + 1] = starts[i] + subReaders[i].maxDoc();
+            }
+
+            List<List<ClusterStore.Row>> rowsByShard;
+            List<String> vocabulary;
+            int dimension;
+            try (MultiReader reader = new MultiReader(subReaders, false)) {
+                DocumentVectorizer vectorizer = new DocumentVectorizer(reader, "Content");
+                System.out.println("Global Vocabulary Size: " + vectorizer.dimension());
+                vocabulary = vectorizer.vocabulary();
+                dimension = vectorizer.dimension();
+                rowsByShard = vectorize(reader, vectorizer, starts, pool);
+            }
+            List<SparseVector> points = new ArrayList<>();
+            for (List<ClusterStore.Row> rows : rowsByShard) {
+                for (ClusterStore.Row row : rows) {
+                    points.add(row.vector);
+                }
+            }
+            System.out.println("Clustering " + points.size() + " documents ...");
+
+            int adjustedK = Math.min(k, points.size());
+            if (adjustedK < 1) {
+                System.out.println("No documents to cluster.");
+                return;
+            }
+            SparseKMeans kMeans = new SparseKMeans(adjustedK, 100, pool, threads, new Random());
+            kMeans.cluster(points, dimension);
+            double[][] centroids = kMeans.centroids();
+            int[] assignment = kMeans.assignment();
+
+            writeAssignments(shards, rowsByShard, assignment, centroids, pool);
+
+            List<List<ClusterStore.Row>> members = new ArrayList<>(centroids.length);
+            for (int c = 0; c < centroids.length; c++) {
+                members.add(new ArrayList<>());
+            }
+            int next = 0;
+            for (List<ClusterStore.Row> rows : rowsByShard) {
+                for (ClusterStore.Row row : rows) {
+                    members.get(assignment[next++]).add(row);
+                }
+            }
+            Path file = generation.resolve(CLUSTERS_FILE);
+            ClusterStore.write(file, centroids, members, vocabulary, generation.getFileName().toString());
+            System.out.println("Stored " + centroids.length + " clusters in " + file);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while clustering", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Error clustering corpus", e.getCause());
+        } finally {
+            pool.shutdownNow();
+            IOUtils.closeWhileHandlingException(subReaders);
+        }
+    }
+
+    // One task per shard; vectors use the MultiReader's global statistics
+    private List<List<ClusterStore.Row>> vectorize(MultiReader reader, DocumentVectorizer vectorizer, int[] starts,
+                                                   ExecutorService pool)
+            throws IOException, InterruptedException, ExecutionException {
+        Bits liveDocs = MultiFields.getLiveDocs(reader);
+
+        List<Future<List<ClusterStore.Row>>> tasks = new ArrayList<>();
+        for (int shard = 0; shard < starts.length - 1; shard++) {
+            final int from = starts[shard];
+            final int to = starts[shard + 1];
+            tasks.add(pool.submit(() -> {
+                List<ClusterStore.Row> rows = new ArrayList<>();
+                for (int docId = from; docId < to; docId++) {
+                    if (liveDocs != null && !liveDocs.get(docId)) {
+                        continue;
+                    }
+                    SparseVector vector = vectorizer.sparseVector(docId);
+                    if (vector != null) {
+                        rows.add(new ClusterStore.Row(docId, reader.document(docId).get("FileName"), vector));
+                    }
+                }
+                return rows;
+            }));
+        }
+
+        List<List<ClusterStore.Row>> rowsByShard = new ArrayList<>();
+        for (Future<List<ClusterStore.Row>> task : tasks) {
+            rowsByShard.add(task.get());
+        }
+        return rowsByShard;
+    }
+
+    private void writeAssignments(List<Path> shards, List<List<ClusterStore.Row>> rowsByShard, int[] assignment,
+                                  double[][] centroids, ExecutorService pool)
+            throws InterruptedException, ExecutionException {
+        double[] norms = new double[centroids.length];
+        for (int c = 0; c < centroids.length; c++) {
+            norms[c] = SparseKMeans.squaredNorm(centroids[c]);
+        }
+
+        List<Future<?>> tasks = new ArrayList<>();
+        int offset = 0;
+        for (int shard = 0; shard < shards.size(); shard++) {
+            final Path shardPath = shards.get(shard);
+            final List<ClusterStore.Row> rows = rowsByShard.get(shard);
+            final int first = offset;
+            offset += rows.size();
+            tasks.add(pool.submit(() -> {
+                IndexWriterConfig config = new IndexWriterConfig(Analyzers.standard())
+                        .setOpenMode(IndexWriterConfig.OpenMode.APPEND);
+                try (IndexWriter writer = new IndexWriter(FSDirectory.open(shardPath), config)) {
+                    for (int i = 0; i < rows.size(); i++) {
+                        ClusterStore.Row row = rows.get(i);
+                        int clusterId = assignment[first + i];
+                        writer.updateDocValues(new Term("FileKey", row.fileName),
+                                new NumericDocValuesField("ClusterId", clusterId),
+                                new DoubleDocValuesField("ClusterSimilarity",
+                                        row.vector.cosine(centroids[clusterId], norms[clusterId])));
+                    }
+                    writer.commit();
+                }
+                return null;
+            }));
+        }
+        for (Future<?> task : tasks) {
+            task.get();
+        }
+    }
+
+    /**
+     * Location of the clustering persisted by {@link #cluster()} for the live index generation
+     * @param indexRoot Index root directory
+     * @return Cluster file, which does not exist if the live generation has not been clustered
+     * @throws IOException If the live generation cannot be resolved
+     */
+    static Path clustersFile(Path indexRoot) throws IOException {
+        return IndexLayout.current(indexRoot).resolve(CLUSTERS_FILE);
+    }
+
+    public static void main(String[] args) throws IOException {
+        new CorpusClusterer(args.length > 0 ? Integer.parseInt(args[0]) : 5).cluster();
+    }
+}
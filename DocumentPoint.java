@@ -0,0 +1,61 @@
+package org.example;
+
+import org.apache.commons.math3.ml.clustering.DoublePoint;
+
+/**
+ * A clusterable point that remembers which document it came from.
+ * Equality is by document id, so two documents with identical vectors stay distinct
+ * as keys and cluster members. A point may carry its similarity to the cluster centroid
+ * without its vector, e.g. for hits grouped by precomputed clusters.
+ */
+public class DocumentPoint extends DoublePoint {
+    private static final long serialVersionUID = 1L;
+
+    private final int docId;
+    private final String fileName;
+    private final double similarity;
+
+    public DocumentPoint(int docId, String fileName, double[] point) {
+        this(docId, fileName, point, Double.NaN);
+    }
+
+    public DocumentPoint(int docId, String fileName, double[] point, double similarity) {
+        super(point);
+        this.docId = docId;
+        this.fileName = fileName;
+        this.similarity = similarity;
+    }
+
+    public int getDocId() {
+        return docId;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    /*
+    * @Output Similarity to the centroid of the document's cluster, NaN if unknown
+    * */
+    public double getSimilarity() {
+        return similarity;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof DocumentPoint)) {
+            return false;
+        }
+        return docId == ((DocumentPoint) other).docId;
+    }
+
+    @Override
+    public int hashCode() {
+        return Integer.hashCode(docId);
+    }
+
+    @Override
+    public String toString() {
+        return fileName + "#" + docId;
+    }
+}
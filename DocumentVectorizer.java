@@ -0,0 +1,140 @@
+package org.example;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Turns the term vectors of a field into TF-IDF vectors over the global vocabulary, sparse for
+ * the whole corpus or dense for the few hits of a query.
+ * Vocabulary and IDF are read once from the reader's terms dictionary, so every vector
+ * built from the same reader (single index or all shards) shares dimensions and statistics.
+ * Statistics merged from shard processes give the same dimensions and IDF.
+ * Safe to share between threads once constructed.
+ */
+class DocumentVectorizer {
+    private final IndexReader reader;
+    private final String fieldName;
+    private final Map<BytesRef, Integer> dimensions = new HashMap<>();
+    private final double[] idf;
+
+    DocumentVectorizer(IndexReader reader, String fieldName) throws IOException {
+        this.reader = reader;
+        this.fieldName = fieldName;
+
+        Terms terms = MultiFields.getTerms(reader, fieldName);
+        int numDocs = reader.numDocs();
+        // Terms.size() is unknown (-1) for a MultiReader, so the IDF array grows as terms come in
+        double[] weights = new double[16];
+        if (terms != null) {
+            TermsEnum termsEnum = terms.iterator();
+            BytesRef term;
+            while ((term = termsEnum.next()) != null) {
+                int dimension = dimensions.size();
+                if (dimension == weights.length) {
+                    weights = Arrays.copyOf(weights, weights.length * 2);
+                }
+                dimensions.put(BytesRef.deepCopyOf(term), dimension);
+                weights[dimension] = Math.log(1 + (numDocs / (double) termsEnum.docFreq()));
+            }
+        }
+        this.idf = Arrays.copyOf(weights, dimensions.size());
+    }
+
+    /*
+    * Vectorizer over statistics merged from shard processes, see RemoteShards. It has no reader,
+    * so it only vectorizes term vectors handed to vectorize(String[], long[]).
+    * @param terms Vocabulary in index term order
+    * @param docFreqs Document frequency of every term
+    * @param numDocs Number of live documents
+    * */
+    DocumentVectorizer(List<BytesRef> terms, long[] docFreqs, int numDocs) {
+        this.reader = null;
+        this.fieldName = null;
+        this.idf = new double[terms.size()];
+        for (int dimension = 0; dimension < idf.length; dimension++) {
+            dimensions.put(terms.get(dimension), dimension);
+            idf[dimension] = Math.log(1 + (numDocs / (double) docFreqs[dimension]));
+        }
+    }
+
+    int dimension() {
+        return idf.length;
+    }
+
+    /*
+    * @Output Term of every dimension, in dimension order
+    * */
+    List<String> vocabulary() {
+        String[] terms = new String[idf.length];
+        for (Map.Entry<BytesRef, Integer> entry : dimensions.entrySet()) {
+            terms[entry.getValue()] = entry.getKey().utf8ToString();
+        }
+        return Arrays.asList(terms);
+    }
+
+    /*
+    * @param docId Document id in the reader this vectorizer was built from
+    * @Output TF-IDF vector, or null if the document has no term vector
+    * */
+    double[] vectorize(int docId) throws IOException {
+        SparseVector vector = sparseVector(docId);
+        return vector == null ? null : vector.toDense(idf.length);
+    }
+
+    /*
+    * @param terms Terms of a document's term vector, e.g. from a shard process
+    * @param freqs Frequency of every term in the document
+    * @Output TF-IDF vector, or null if the document has no term vector
+    * */
+    double[] vectorize(String[] terms, long[] freqs) {
+        if (terms == null) {
+            return null;
+        }
+        double[] vector = new double[idf.length];
+        for (int i = 0; i < terms.length; i++) {
+            Integer dimension = dimensions.get(new BytesRef(terms[i]));
+            if (dimension != null) {
+                vector[dimension] = freqs[i] * idf[dimension];
+            }
+        }
+        return vector;
+    }
+
+    /*
+    * @param docId Document id in the reader this vectorizer was built from
+    * @Output Non-zero TF-IDF entries, or null if the document has no term vector
+    * */
+    SparseVector sparseVector(int docId) throws IOException {
+        Terms terms = reader.getTermVector(docId, fieldName);
+        if (terms == null) {
+            return null;
+        }
+        int size = terms.size() > 0 ? (int) terms.size() : 16;
+        int[] indices = new int[size];
+        double[] values = new double[size];
+        int nnz = 0;
+        TermsEnum termsEnum = terms.iterator();
+        BytesRef term;
+        while ((term = termsEnum.next()) != null) {
+            Integer dimension = dimensions.get(term);
+            if (dimension != null) {
+                if (nnz == indices.length) {
+                    indices = Arrays.copyOf(indices, nnz * 2);
+                    values = Arrays.copyOf(values, nnz * 2);
+                }
+                indices[nnz] = dimension;
+                values[nnz++] = termsEnum.totalTermFreq() * idf[dimension];
+            }
+        }
+        return new SparseVector(Arrays.copyOf(indices, nnz), Arrays.copyOf(values, nnz));
+    }
+}
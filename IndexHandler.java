@@ -1,67 +1,197 @@
 package org.example;
 
-import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.document.DoubleDocValuesField;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexOptions;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.*;
+import java.util.zip.ZipEntry;
 
 
+/**
+ * Indexes a directory or ZIP file as a resumable job. The index is built in the staging
+ * directory of the index root ({@code index/staging}, see {@link IndexLayout}) and committed every
+ * {@link #CHECKPOINT_INTERVAL} documents, with the job id in the commit user data.
+ * A job that dies halfway resumes from its last commit: the files and ZIP entries already
+ * in the staged index are skipped. Only a complete job becomes live, as a new generation
+ * published through {@link IndexLayout}, so the previous index stays queryable until then.
+ */
 public class IndexHandler {
+    static final int CHECKPOINT_INTERVAL = 100;
 
+    private final Path root;
+    private final Path staging;
     private Directory index;
+    private Set<String> processed = Collections.emptySet();
+
+    public IndexHandler(){
+        this("index");
+    }
+
+    public IndexHandler(String indexPath){
+        this(Paths.get(indexPath), IndexLayout.staging(Paths.get(indexPath)));
+    }
+
+    /*
+    * Builds into the given directory below the root's staging area, e.g. one shard
+    * */
+    IndexHandler(Path root, Path staging){
+        this.root = root;
+        this.staging = staging;
+    }
 
-    public IndexHandler(){}
     protected void index(File source) throws IOException {
-        createIndex();
         System.out.println("IndexHandler->");
-        try (IndexWriter writer = createIndexWriter()) {
-            System.out.println("3. Indexing files...");
 
-            if (source.isDirectory()) {
-                File[] files = source.listFiles();
-                if (files == null || files.length == 0) {
-                    System.out.println("No files to index.");
-                    return;
+        if (source.isDirectory()) {
+            File[] files = source.listFiles();
+            if (files == null || files.length == 0) {
+                System.out.println("No files to index.");
+                return;
+            }
+            Arrays.sort(files);
+            build(source.getCanonicalPath(), Arrays.asList(files));
+        } else if (source.isFile() && source.getName().toLowerCase().endsWith(".zip")) {
+            buildFromZip(source);
+        } else {
+            System.out.println("Source is not a directory or ZIP file.");
+            return;
+        }
+        publish();
+    }
+
+    /**
+     * Indexes the given files into the staging directory, resuming a previous run of the
+     * same job. Does not touch the live index; call {@link #publish()} once this returns.
+     * @param jobId Identifies the job across restarts, e.g. the source path
+     * @param files Files to index
+     * @throws IOException If the staging index cannot be written
+     */
+    protected void build(String jobId, List<File> files) throws IOException {
+        List<IndexSource> sources = new ArrayList<>();
+        for (File file : files) {
+            if (file.isFile()) {
+                sources.add(new IndexSource(file.getName()) {
+                    @Override
+                    String read() throws IOException {
+                        return getString(file.getPath());
+                    }
+                });
+            }
+        }
+        build(jobId, sources.iterator());
+    }
+
+    private void buildFromZip(File zip) throws IOException {
+        try (ZipFileHandler zipFile = new ZipFileHandler(zip.getPath())) {
+            build(zip.getCanonicalPath(), new Iterator<IndexSource>() {
+                @Override
+                public boolean hasNext() {
+                    return zipFile.hasNext();
                 }
 
-                for (File file : files) {
-                    if (file.isFile()) {
-                        try {
-                            String content = getString(file.getPath());
-                            Document doc = createDocument(file.getName(), content);
-                            updateIndex(writer, doc);
-                        } catch (IOException e) {
-                            System.err.println("Error processing file: " + file.getName());
-                            e.printStackTrace();
+                @Override
+                public IndexSource next() {
+                    ZipEntry entry = zipFile.next();
+                    if (entry.isDirectory()) {
+                        return null;
+                    }
+                    return new IndexSource(entry.getName()) {
+                        @Override
+                        String read() throws IOException {
+                            System.out.println("2. reading text...");
+                            return zipFile.getCurrentEntryContent();
                         }
+                    };
+                }
+            });
+        }
+    }
+
+    private void build(String jobId, Iterator<IndexSource> sources) throws IOException {
+        createIndex(jobId);
+        try (IndexWriter writer = createIndexWriter()) {
+            checkpoint(writer, jobId, false);
+            System.out.println("3. Indexing files...");
+
+            int sinceCheckpoint = 0;
+            while (sources.hasNext()) {
+                IndexSource source = sources.next();
+                if (source == null || processed.contains(source.name)) {
+                    continue;
+                }
+                try {
+                    String content = source.read();
+                    Document doc = createDocument(source.name, content);
+                    updateIndex(writer, doc);
+                    if (++sinceCheckpoint == CHECKPOINT_INTERVAL) {
+                        checkpoint(writer, jobId, false);
+                        sinceCheckpoint = 0;
                     }
+                } catch (IOException e) {
+                    System.err.println("Error processing file: " + source.name);
+                    e.printStackTrace();
                 }
-            } else {
-                System.out.println("Source is not a directory.");
             }
+            checkpoint(writer, jobId, true);
+        } finally {
+            index.close();
         }
     }
 
+    // Commits everything added so far; the committed FileKey terms are the job's progress
+    private void checkpoint(IndexWriter writer, String jobId, boolean complete) throws IOException {
+        Map<String, String> userData = new HashMap<>();
+        userData.put("job.id", jobId);
+        userData.put("job.state", complete ? "complete" : "running");
+        writer.setLiveCommitData(userData.entrySet());
+        writer.commit();
+    }
 
+    /**
+     * Makes the completed staging index the live index, in one atomic switch
+     * @throws IOException If the new generation cannot be published
+     */
+    protected void publish() throws IOException {
+        System.out.println("6. publishing index ...");
+        IndexLayout.publish(root, staging);
+    }
+
+    // Raw text: the writer's analyzer tokenizes it, and the stored value stays readable for previews
     private String getString(String fileName) throws IOException {
-        System.out.println("2. extracting tokens...");
-        return new TextExtractor().extract(fileName);
+        System.out.println("2. reading text...");
+        return new TextExtractor().read(fileName);
     }
 
     protected Document createDocument(String FileName, String text){
         System.out.println("4. creating document...");
         Document doc = new Document();
         doc.add(new TextField("FileName",FileName, Field.Store.YES));
+        // Untokenized key, used to update a document's cluster assignment in place
+        doc.add(new StringField("FileKey",FileName, Field.Store.NO));
+        // Filled in by CorpusClusterer; -1 means not clustered yet
+        doc.add(new NumericDocValuesField("ClusterId", -1));
+        doc.add(new DoubleDocValuesField("ClusterSimilarity", 0));
 
         FieldType fieldType = new FieldType();
         fieldType.setIndexOptions(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS);
@@ -71,35 +201,117 @@ public class IndexHandler {
         fieldType.setStored(true);
         fieldType.setTokenized(true);
 
+        // Leading text only, highlighted for previews. Offsets go into the postings rather than
+        // term vectors: reading a term vector decodes the vectors of every field of the document,
+        // which would include the full Content vector. Stored ahead of Content, so a stored-field
+        // visitor can stop before reaching it.
+        FieldType previewType = new FieldType();
+        previewType.setIndexOptions(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS_AND_OFFSETS);
+        previewType.setStored(true);
+        previewType.setTokenized(true);
+
+        doc.add(new Field("Preview", previewText(text), previewType));
         doc.add(new Field("Content",text,fieldType));
 
         return doc;
     }
 
+    private static String previewText(String text) {
+        if (text.length() <= QueryHandler.PREVIEW_LENGTH) {
+            return text;
+        }
+        int end = QueryHandler.PREVIEW_LENGTH;
+        if (Character.isHighSurrogate(text.charAt(end - 1))) {
+            end--;
+        }
+        return text.substring(0, end);
+    }
+
     protected IndexWriter createIndexWriter() throws IOException {
         System.out.println("2. creating index writer ...");
-        IndexWriterConfig config = new IndexWriterConfig(new StandardAnalyzer());
+        IndexWriterConfig config = new IndexWriterConfig(Analyzers.standard());
 
         return new IndexWriter(index,config);
     }
 
-    protected void createIndex() throws IOException {
+    /*
+    * Opens the staging index. A staging index left behind by the same job is kept and its
+    * documents are skipped; anything else in the staging directory is cleared.
+    * */
+    protected void createIndex(String jobId) throws IOException {
         System.out.println("1. creating index ...");
-        System.out.println("1. Clearing and creating index ...");
+        this.processed = Collections.emptySet();
+        if (resumable(jobId)) {
+            try (Directory directory = FSDirectory.open(staging); DirectoryReader reader = DirectoryReader.open(directory)) {
+                this.processed = readProcessed(reader);
+            }
+            System.out.println("1. Resuming job from checkpoint with " + processed.size() + " documents ...");
+        } else {
+            System.out.println("1. Clearing and creating index ...");
+            clearDirectory(staging.toFile());
+        }
+        this.index = FSDirectory.open(staging);
+    }
 
-        // Path to the index directory
-        String indexPath = "index";
-        File indexDir = new File(indexPath);
+    /*
+    * True if the staging directory holds a checkpoint of the given job
+    * */
+    boolean resumable(String jobId) throws IOException {
+        return jobId.equals(checkpointData(staging).get("job.id"));
+    }
 
-        // Delete existing index files
-        if (indexDir.exists()) {
-            for (File file : indexDir.listFiles()) {
-                if (!file.delete()) {
-                    System.err.println("Failed to delete file: " + file.getAbsolutePath());
-                }
+    boolean complete(String jobId) throws IOException {
+        Map<String, String> userData = checkpointData(staging);
+        return jobId.equals(userData.get("job.id")) && "complete".equals(userData.get("job.state"));
+    }
+
+    private static Map<String, String> checkpointData(Path directory) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return Collections.emptyMap();
+        }
+        try (Directory dir = FSDirectory.open(directory)) {
+            if (!DirectoryReader.indexExists(dir)) {
+                return Collections.emptyMap();
+            }
+            return SegmentInfos.readLatestCommit(dir).getUserData();
+        }
+    }
+
+    private static Set<String> readProcessed(DirectoryReader reader) throws IOException {
+        Set<String> names = new HashSet<>();
+        Terms terms = MultiFields.getTerms(reader, "FileKey");
+        if (terms != null) {
+            TermsEnum termsEnum = terms.iterator();
+            BytesRef term;
+            while ((term = termsEnum.next()) != null) {
+                names.add(term.utf8ToString());
+            }
+        }
+        return names;
+    }
+
+    static void clearDirectory(File dir) {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File file : children) {
+            if (file.isDirectory()) {
+                clearDirectory(file);
+            }
+            if (!file.delete()) {
+                System.err.println("Failed to delete file: " + file.getAbsolutePath());
+            }
+        }
+    }
+
+    static void deleteDirectory(File dir) {
+        if (dir.exists()) {
+            clearDirectory(dir);
+            if (!dir.delete()) {
+                System.err.println("Failed to delete directory: " + dir.getAbsolutePath());
             }
         }
-        this.index = FSDirectory.open(Paths.get("index"));
     }
 
     protected void updateIndex(IndexWriter indexWriter,Document doc) throws IOException {
@@ -112,4 +324,15 @@ public class IndexHandler {
 
 
     }
+
+    // One file or ZIP entry; read lazily so skipped entries are never extracted
+    private abstract static class IndexSource {
+        final String name;
+
+        IndexSource(String name) {
+            this.name = name;
+        }
+
+        abstract String read() throws IOException;
+    }
 }
@@ -0,0 +1,176 @@
+package org.example;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.IOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * On-disk layout of the index root. Every completed index lives in its own generation
+ * directory ({@code index/gen-3}); the {@code CURRENT} file names the live one. Single-index
+ * jobs build into {@code index/staging} and sharded jobs into {@code index/staging-shards}, so
+ * neither clears the other's checkpoint. A completed staging directory is renamed to the next
+ * generation, and the live index changes with a single atomic replace of {@code CURRENT}.
+ * Readers resolve {@code CURRENT} when they open, so they always see one complete index,
+ * single or sharded. The generation that was live before a publish is kept until the next
+ * one, so readers and clusterers that resolved it just before the switch can finish.
+ */
+final class IndexLayout {
+    static final String CURRENT = "CURRENT";
+    static final String STAGING = "staging";
+    static final String SHARD_STAGING = "staging-shards";
+    static final String GENERATION_PREFIX = "gen-";
+
+    private IndexLayout() {}
+
+    static Path staging(Path root) {
+        return root.resolve(STAGING);
+    }
+
+    static Path shardStaging(Path root) {
+        return root.resolve(SHARD_STAGING);
+    }
+
+    /**
+     * Directory of the live index
+     * @param root Index root
+     * @return Generation named by CURRENT, or the root itself for an index written before generations
+     * @throws IOException If CURRENT cannot be read
+     */
+    static Path current(Path root) throws IOException {
+        Path current = root.resolve(CURRENT);
+        if (!Files.exists(current)) {
+            return root;
+        }
+        String generation = new String(Files.readAllBytes(current), StandardCharsets.UTF_8).trim();
+        return root.resolve(generation);
+    }
+
+    /**
+     * Lucene index directories of a generation: its shards, or the generation itself
+     * @param generation Generation directory
+     * @return Index directories, in shard order
+     * @throws IOException If the generation cannot be listed or is missing shards
+     */
+    static List<Path> indexDirectories(Path generation) throws IOException {
+        List<Path> shards = ShardedIndexHandler.expectedShards(generation);
+        return shards.isEmpty() ? Collections.singletonList(generation) : shards;
+    }
+
+    /*
+    * Opens the live index, all shards as one MultiReader
+    * */
+    static IndexReader openReader(Path root) throws IOException {
+        return open(current(root));
+    }
+
+    /*
+    * Opens one generation, all shards as one MultiReader; callers that also read files kept
+    * next to the index resolve the generation once and use it for both
+    * */
+    static IndexReader open(Path generation) throws IOException {
+        List<Path> directories = indexDirectories(generation);
+        if (directories.size() == 1 && !ShardedIndexHandler.isShardDirectory(directories.get(0))) {
+            return DirectoryReader.open(FSDirectory.open(directories.get(0)));
+        }
+
+        IndexReader[] subReaders = new IndexReader[directories.size()];
+        try {
+            for (int i = 0; i < subReaders.length; i++) {
+                subReaders[i] = DirectoryReader.open(FSDirectory.open(directories.get(i)));
+            }
+        } catch (IOException e) {
+            IOUtils.closeWhileHandlingException(subReaders);
+            throw e;
+        }
+        return new MultiReader(subReaders, true);
+    }
+
+    /**
+     * Turns a completed staging directory into the next generation and makes it live.
+     * A crash before CURRENT is replaced leaves the previous generation live; the orphaned
+     * generation is removed by a later publish.
+     * @param root Index root
+     * @param staging {@link #staging(Path)} or {@link #shardStaging(Path)}
+     * @return false if there was no staging directory, e.g. another process published it first
+     * @throws IOException If the generation cannot be made live
+     */
+    static synchronized boolean publish(Path root, Path staging) throws IOException {
+        int next = 0;
+        for (Path generation : generations(root)) {
+            next = Math.max(next, generationNumber(generation) + 1);
+        }
+        Path previous = current(root);
+        Path generation = root.resolve(GENERATION_PREFIX + next);
+        try {
+            Files.move(staging, generation, StandardCopyOption.ATOMIC_MOVE);
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+
+        Path pending = root.resolve(CURRENT + "." + next);
+        Files.write(pending, generation.getFileName().toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(pending, root.resolve(CURRENT), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        System.out.println("Published " + generation);
+
+        removeOld(root, generation, previous);
+        return true;
+    }
+
+    /*
+    * Deletes generations older than the previous one, and the files of an index written before
+    * generations once that index is no longer the previous one either. On Windows, files still
+    * open in a reader cannot be deleted; they are retried by the next publish.
+    * */
+    private static void removeOld(Path root, Path live, Path previous) throws IOException {
+        boolean keepLegacy = previous.equals(root);
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(root)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                if (path.equals(live) || path.equals(previous) || name.equals(CURRENT)
+                        || name.equals(STAGING) || name.equals(SHARD_STAGING)) {
+                    continue;
+                }
+                boolean generation = Files.isDirectory(path) && name.matches(GENERATION_PREFIX + "\\d+");
+                if (keepLegacy && !generation) {
+                    continue;
+                }
+                File file = path.toFile();
+                if (file.isDirectory()) {
+                    IndexHandler.deleteDirectory(file);
+                } else if (!file.delete()) {
+                    System.err.println("Failed to delete file: " + file.getAbsolutePath());
+                }
+            }
+        }
+    }
+
+    private static List<Path> generations(Path root) throws IOException {
+        List<Path> generations = new ArrayList<>();
+        if (!Files.isDirectory(root)) {
+            return generations;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(root, GENERATION_PREFIX + "*")) {
+            for (Path path : stream) {
+                if (Files.isDirectory(path) && path.getFileName().toString().matches(GENERATION_PREFIX + "\\d+")) {
+                    generations.add(path);
+                }
+            }
+        }
+        return generations;
+    }
+
+    private static int generationNumber(Path generation) {
+        return Integer.parseInt(generation.getFileName().toString().substring(GENERATION_PREFIX.length()));
+    }
+}
@@ -20,17 +20,25 @@ public class PreQueryFrontEnd extends JFrame {
     private List<CentroidCluster<DoublePoint>> clusters;
     private QueryHandler queryHandler;
     private String pathToUnzippedFiles;
+    private String lastQuery;
     private JTextArea previewArea;
     private JSplitPane splitPane;
 
     public PreQueryFrontEnd() {
+        this(0);
+    }
+
+    /*
+    * @param shardPort Base port of ShardServer processes to search through, 0 to search in this process
+    * */
+    public PreQueryFrontEnd(int shardPort) {
         setTitle("Search Engine");
         setSize(800, 600);
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
 
         cardLayout = new CardLayout();
         mainPanel = new JPanel(cardLayout);
-        queryHandler = new QueryHandler();
+        queryHandler = new QueryHandler(true, shardPort);
 
         mainPanel.add(createUploadPanel(), "UPLOAD");
         mainPanel.add(createIndexingPanel(), "INDEXING");
@@ -111,14 +119,23 @@ public class PreQueryFrontEnd extends JFrame {
         spinnerPanel.add(spinnerLabel);
         spinnerPanel.add(clusterSpinner);
 
+        // Precomputed corpus clusters are used unless the user asks to recluster the hits
+        JCheckBox reclusterBox = new JCheckBox("Recluster");
+
         JButton searchButton = new JButton("Search");
 
+        // Clusters the whole corpus into the spinner's number of clusters, for later searches to browse
+        JButton precomputeButton = new JButton("Precompute Clusters");
+        precomputeButton.addActionListener(e -> precomputeClusters(precomputeButton, (Integer) clusterSpinner.getValue()));
+
         // Add components to the top panel
         topPanel.add(searchField);
         topPanel.add(Box.createHorizontalStrut(10));  // Add some spacing
         topPanel.add(spinnerPanel);
+        topPanel.add(reclusterBox);
         topPanel.add(Box.createHorizontalStrut(10));  // Add some spacing
         topPanel.add(searchButton);
+        topPanel.add(precomputeButton);
 
         // Center panel with split pane
         JPanel buttonsPanel = new JPanel();
@@ -141,8 +158,15 @@ public class PreQueryFrontEnd extends JFrame {
         searchButton.addActionListener(e -> {
             String query = searchField.getText();
             if (!query.isEmpty()) {
+                lastQuery = query;
                 int numClusters = (Integer) clusterSpinner.getValue();
-                clusters = queryHandler.handle(query, numClusters);
+                clusters = null;
+                if (!reclusterBox.isSelected() && queryHandler.hasPrecomputedClusters()) {
+                    clusters = queryHandler.browse(query);
+                }
+                if (clusters == null) {
+                    clusters = queryHandler.handle(query, numClusters);
+                }
                 updateClusterButtons(buttonsPanel);
             }
         });
@@ -169,22 +193,14 @@ public class PreQueryFrontEnd extends JFrame {
     }
 
     private void showPreview(String fileName) {
-        try {
-            String filePath = pathToUnzippedFiles + File.separator + fileName;
-            File file = new File(filePath);
-
-            if (!file.exists()) {
-                previewArea.setText("File not found: " + fileName);
-                return;
-            }
-
-            // Use TextExtractor for supported files
-            String content = new TextExtractor().extract(filePath);
-            previewArea.setText(content);
-
-        } catch (IOException ex) {
-            previewArea.setText("Error loading preview: " + ex.getMessage());
+        // Highlighted passages straight from the index; the file itself is not read again
+        String preview = queryHandler.preview(fileName, lastQuery);
+        if (preview == null) {
+            previewArea.setText("File not found: " + fileName);
+            return;
         }
+        previewArea.setText(preview);
+        previewArea.setCaretPosition(0);
     }
 
     private void updateClusterButtons(JPanel buttonsPanel) {
@@ -320,6 +336,31 @@ public class PreQueryFrontEnd extends JFrame {
         worker.execute();
     }
 
+    private void precomputeClusters(JButton button, int numClusters) {
+        button.setEnabled(false);
+        button.setText("Clustering...");
+
+        SwingWorker<Void, Void> worker = new SwingWorker<Void, Void>() {
+            @Override
+            protected Void doInBackground() {
+                try {
+                    new CorpusClusterer(numClusters).cluster();
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                }
+                return null;
+            }
+
+            @Override
+            protected void done() {
+                button.setText("Precompute Clusters");
+                button.setEnabled(true);
+            }
+        };
+
+        worker.execute();
+    }
+
     private void copyFile(File source, File dest) throws IOException {
         try (FileChannel sourceChannel = new FileInputStream(source).getChannel();
              FileChannel destChannel = new FileOutputStream(dest).getChannel()) {
@@ -328,6 +369,7 @@ public class PreQueryFrontEnd extends JFrame {
     }
 
     public static void main(String[] args) {
-        SwingUtilities.invokeLater(() -> new PreQueryFrontEnd().setVisible(true));
+        int shardPort = args.length > 0 ? Integer.parseInt(args[0]) : 0;
+        SwingUtilities.invokeLater(() -> new PreQueryFrontEnd(shardPort).setVisible(true));
     }
 }
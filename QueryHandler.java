@@ -1,78 +1,424 @@
 package org.example;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
 
-import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.document.StoredField;
 import org.apache.lucene.index.*;
-import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.util.*;
 import org.apache.lucene.search.*;
+import org.apache.lucene.search.uhighlight.DefaultPassageFormatter;
+import org.apache.lucene.search.uhighlight.UnifiedHighlighter;
 import org.apache.commons.math3.ml.clustering.*;
 import org.apache.commons.math3.ml.clustering.DoublePoint;
 
 public class QueryHandler {
-    private Map<DoublePoint, Document> docMap;
+    // Previews look at no more than this many characters of a document, however long it is
+    static final int PREVIEW_LENGTH = 10000;
+    static final int PREVIEW_PASSAGES = 3;
 
+    private static final Path INDEX_ROOT = Paths.get("index");
+
+    // Scatter-gather pool: a searcher over several shards runs each shard's segments on it
+    private static final ExecutorService SEARCH_POOL = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), r -> {
+                Thread thread = new Thread(r, "shard-search");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    // Stateless once configured, so one builder (and its analyzer) serves every query
+    static final QueryBuilder QUERY_BUILDER = new QueryBuilder(Analyzers.standard());
+
+    // Documents of the last result handed to openCluster; each call builds its own map
+    // and publishes it here, so concurrent handle() calls never share a map under construction
+    private volatile Map<DoublePoint, Document> docMap;
+    private volatile CachedCentroids cachedCentroids;
+    private final boolean verbose;
+    // Shard processes serving the index, or null to search it in this process
+    private final RemoteShards shards;
+
+    public QueryHandler() {
+        this(true);
+    }
+
+    /*
+    * @param verbose false to skip the per-query console output, e.g. under load
+    * */
+    public QueryHandler(boolean verbose) {
+        this(verbose, 0);
+    }
+
+    /*
+    * @param verbose false to skip the per-query console output, e.g. under load
+    * @param shardPort Base port of the ShardServer processes serving the index, 0 to search it in this process
+    * */
+    public QueryHandler(boolean verbose, int shardPort) {
+        this.verbose = verbose;
+        this.shards = shardPort > 0 ? new RemoteShards(INDEX_ROOT, shardPort) : null;
+    }
 
     public List<CentroidCluster<DoublePoint>> handle(String query, int k) {
-        QueryBuilder builder = new QueryBuilder(new StandardAnalyzer());
-        Query q = builder.createBooleanQuery("Content", query);
-        List<CentroidCluster<DoublePoint>> clusters = null;
-        try (IndexReader reader = DirectoryReader.open(FSDirectory.open(Paths.get("index")))) {
-            IndexSearcher searcher = new IndexSearcher(reader);
-            TopDocs topDocs = searcher.search(q, 100);
-            ScoreDoc[] hits = topDocs.scoreDocs;
-
-            System.out.println("Retrieved " + hits.length + " documents.");
-
-            // Build global vocabulary
-            Set<String> vocabulary = buildGlobalVocabulary(reader, "Content");
-
-            List<DoublePoint> documentVectors = new ArrayList<>();
-            this.docMap = new HashMap<>();
-
-            // Create TF-IDF vectors for each document
-            for (ScoreDoc hit : hits) {
-                Document doc = searcher.doc(hit.doc);
-                Terms terms = reader.getTermVector(hit.doc, "Content");
-                if (terms != null) {
-                    DoublePoint vector = createTFIDFVectorWithVocabulary(terms, reader, vocabulary);
-                    documentVectors.add(vector);
-                    docMap.put(vector, doc);
+        Map<DoublePoint, Document> docs = new HashMap<>();
+        Clustering clusters = null;
+        try {
+            clusters = handle(query, k, docs, null);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        this.docMap = docs;
+        return clusters;
+    }
+
+    /**
+     * Searches and clusters without touching shared state, so it may be called from many
+     * threads at once.
+     * @param query Query text
+     * @param k Number of clusters
+     * @param docs Receives the document behind every clustered point
+     * @param timings Receives the time spent per stage, may be null
+     * @return Clusters with the vocabulary and generation they were computed on, or null if
+     *         there are too few hits to cluster
+     * @throws IOException If the index cannot be read
+     */
+    Clustering handle(String query, int k, Map<DoublePoint, Document> docs,
+                      StageTimings timings) throws IOException {
+        long start = System.nanoTime();
+        long searched;
+        List<DoublePoint> documentVectors = new ArrayList<>();
+        DocumentVectorizer vectorizer;
+        String generation;
+        if (shards != null) {
+            // Shard processes score with global statistics; the vectorizer holds the merged vocabulary
+            RemoteShards.Result result = shards.search(query, 100, true);
+            searched = System.nanoTime();
+            log("Retrieved " + result.hits.length + " documents.");
+            vectorizer = result.vectorizer;
+            log("Global Vocabulary Size: " + vectorizer.dimension());
+
+            for (int i = 0; i < result.hits.length; i++) {
+                ShardService.Hit hit = result.hits[i];
+                double[] vector = vectorizer.vectorize(hit.terms, hit.freqs);
+                if (vector != null) {
+                    DocumentPoint point = new DocumentPoint(result.docs[i], hit.fileName, vector);
+                    documentVectors.add(point);
+                    docs.put(point, fileNameDocument(hit.fileName));
                 }
             }
+            generation = result.generation;
+        } else {
+            Query q = QUERY_BUILDER.createBooleanQuery("Content", query);
+            Path live = IndexLayout.current(INDEX_ROOT);
+            generation = live.getFileName().toString();
+            try (IndexReader reader = openReader(live)) {
+                // Shards are merged into one top-N by the searcher; docFreq/numDocs on the
+                // MultiReader are global, so the TF-IDF vectors match the single-index case
+                IndexSearcher searcher = reader instanceof MultiReader
+                        ? new IndexSearcher(reader, SEARCH_POOL)
+                        : new IndexSearcher(reader);
+                TopDocs topDocs = searcher.search(q, 100);
+                ScoreDoc[] hits = topDocs.scoreDocs;
+                searched = System.nanoTime();
 
-            System.out.println("Extracted " + documentVectors.size() + " consistent TF-IDF vectors.");
+                log("Retrieved " + hits.length + " documents.");
 
-            if (documentVectors.isEmpty()) {
-                System.out.println("No valid documents to cluster. Ensure the query retrieves results.");
-                return clusters;
-            }
+                // Global vocabulary and IDF, shared by all vectors of this query
+                vectorizer = new DocumentVectorizer(reader, "Content");
+                log("Global Vocabulary Size: " + vectorizer.dimension());
 
-            int adjustedK = Math.min(k, documentVectors.size());
-            if (adjustedK < 2) {
-                System.out.println("Not enough documents for clustering. Minimum 2 required.");
-                return clusters;
+                // Create TF-IDF vectors for each document
+                for (ScoreDoc hit : hits) {
+                    double[] vector = vectorizer.vectorize(hit.doc);
+                    if (vector != null) {
+                        String fileName = storedField(reader, hit.doc, "FileName");
+                        DocumentPoint point = new DocumentPoint(hit.doc, fileName, vector);
+                        documentVectors.add(point);
+                        docs.put(point, fileNameDocument(fileName));
+                    }
+                }
             }
+        }
+        long vectorized = System.nanoTime();
+        if (timings != null) {
+            timings.searchNanos = searched - start;
+            timings.vectorizeNanos = vectorized - searched;
+        }
+
+        log("Extracted " + documentVectors.size() + " consistent TF-IDF vectors.");
 
-            KMeansPlusPlusClusterer<DoublePoint> kMeans = new KMeansPlusPlusClusterer<>(adjustedK, 100);
-            clusters = kMeans.cluster(documentVectors);
+        if (documentVectors.isEmpty()) {
+            log("No valid documents to cluster. Ensure the query retrieves results.");
+            return null;
+        }
 
+        int adjustedK = Math.min(k, documentVectors.size());
+        if (adjustedK < 2) {
+            log("Not enough documents for clustering. Minimum 2 required.");
+            return null;
+        }
 
+        KMeansPlusPlusClusterer<DoublePoint> kMeans = new KMeansPlusPlusClusterer<>(adjustedK, 100);
+        // The vocabulary is only listed if the clusters are saved
+        Clustering clusters = new Clustering(kMeans.cluster(documentVectors), vectorizer::vocabulary, generation);
+        if (timings != null) {
+            timings.clusterNanos = System.nanoTime() - vectorized;
+        }
+
+        if (verbose) {
             for (int i = 0; i < clusters.size(); i++) {
                 System.out.println("Cluster " + (i + 1) + ":");
                 for (DoublePoint point : clusters.get(i).getPoints()) {
-                    Document doc = docMap.get(point);
+                    Document doc = docs.get(point);
                     System.out.println(" - " + doc.get("FileName"));
                 }
             }
+        }
+        return clusters;
+    }
+
+    private void log(String message) {
+        if (verbose) {
+            System.out.println(message);
+        }
+    }
+
+    /**
+     * Groups the hits of a query by the cluster assignments precomputed by {@link CorpusClusterer}.
+     * Points carry no vector, only the document's stored centroid similarity
+     * ({@link DocumentPoint#getSimilarity()}); the cluster centers are the persisted centroids.
+     * @param query Query text
+     * @return Clusters in order of their best hit, or null if the index has no (complete)
+     *         precomputed clustering, in which case callers fall back to {@link #handle(String, int)}
+     */
+    public List<CentroidCluster<DoublePoint>> browse(String query) {
+        try {
+            List<DocumentPoint> points = new ArrayList<>();
+            List<Long> clusterIds = new ArrayList<>();
+            Path generation;
+            if (shards != null) {
+                RemoteShards.Result result = shards.search(query, 100, false);
+                for (int i = 0; i < result.hits.length; i++) {
+                    ShardService.Hit hit = result.hits[i];
+                    points.add(new DocumentPoint(result.docs[i], hit.fileName, new double[0], hit.similarity));
+                    clusterIds.add(hit.clusterId);
+                }
+                generation = INDEX_ROOT.resolve(result.generation);
+            } else {
+                Query q = QUERY_BUILDER.createBooleanQuery("Content", query);
+                // Reader and centroids from the same generation, even if a publish happens in between
+                generation = IndexLayout.current(INDEX_ROOT);
+                try (IndexReader reader = openReader(generation)) {
+                    IndexSearcher searcher = reader instanceof MultiReader
+                            ? new IndexSearcher(reader, SEARCH_POOL)
+                            : new IndexSearcher(reader);
+                    for (ScoreDoc hit : searcher.search(q, 100).scoreDocs) {
+                        String fileName = storedField(reader, hit.doc, "FileName");
+                        double similarity = clusterSimilarity(reader, hit.doc);
+                        points.add(new DocumentPoint(hit.doc, fileName, new double[0], similarity));
+                        clusterIds.add(clusterId(reader, hit.doc));
+                    }
+                }
+            }
 
+            double[][] centroids = centroids(generation.resolve(CorpusClusterer.CLUSTERS_FILE));
+            if (centroids == null) {
+                System.out.println("Corpus has not been clustered.");
+                return null;
+            }
+            System.out.println("Retrieved " + points.size() + " documents.");
+
+            Map<Long, CentroidCluster<DoublePoint>> byCluster = new LinkedHashMap<>();
+            for (int i = 0; i < points.size(); i++) {
+                long clusterId = clusterIds.get(i);
+                if (clusterId < 0 || clusterId >= centroids.length) {
+                    System.out.println("Hit " + points.get(i).getDocId() + " has no precomputed cluster.");
+                    return null;
+                }
+                byCluster.computeIfAbsent(clusterId, id -> new CentroidCluster<>(new DoublePoint(centroids[id.intValue()])))
+                        .addPoint(points.get(i));
+            }
+
+            // Every point is a DocumentPoint that names its file
+            this.docMap = Collections.emptyMap();
+            return new ArrayList<>(byCluster.values());
         } catch (Exception e) {
             e.printStackTrace();
+            return null;
         }
+    }
+
+    /*
+    * @Output Precomputed cluster of a document, -1 if it has none
+    * */
+    static long clusterId(IndexReader reader, int docId) throws IOException {
+        List<LeafReaderContext> leaves = reader.leaves();
+        LeafReaderContext leaf = leaves.get(ReaderUtil.subIndex(docId, leaves));
+        NumericDocValues clusterIds = leaf.reader().getNumericDocValues("ClusterId");
+        return clusterIds != null && clusterIds.advanceExact(docId - leaf.docBase) ? clusterIds.longValue() : -1;
+    }
+
+    /*
+    * @Output Similarity of a document to the centroid of its precomputed cluster, 0 if unknown
+    * */
+    static double clusterSimilarity(IndexReader reader, int docId) throws IOException {
+        List<LeafReaderContext> leaves = reader.leaves();
+        LeafReaderContext leaf = leaves.get(ReaderUtil.subIndex(docId, leaves));
+        NumericDocValues similarities = leaf.reader().getNumericDocValues("ClusterSimilarity");
+        return similarities != null && similarities.advanceExact(docId - leaf.docBase)
+                ? Double.longBitsToDouble(similarities.longValue())
+                : 0;
+    }
+
+    public boolean hasPrecomputedClusters() {
+        try {
+            return Files.exists(CorpusClusterer.clustersFile(INDEX_ROOT));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /*
+    * Centroids of a cluster file, read once and reused until the file is replaced
+    * @Output Centroids, or null if the file does not exist
+    * */
+    private double[][] centroids(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return null;
+        }
+        FileTime modified = Files.getLastModifiedTime(file);
+        long size = Files.size(file);
+        CachedCentroids cached = this.cachedCentroids;
+        if (cached != null && cached.file.equals(file) && cached.modified.equals(modified) && cached.size == size) {
+            return cached.centroids;
+        }
+        double[][] centroids = ClusterStore.readCentroids(file);
+        this.cachedCentroids = new CachedCentroids(file, modified, size, centroids);
+        return centroids;
+    }
+
+    /**
+     * Best passages of an indexed document for a query, with the query terms marked [like this].
+     * Passages come from the Preview field, the first {@link #PREVIEW_LENGTH} characters of the
+     * document, with offsets from its postings. Neither the source file nor the Content field
+     * (stored text or term vector) is read, so the cost does not grow with the document.
+     * @param fileName Document's file name
+     * @param query Query the passages should match, may be empty
+     * @return Preview text, or null if the document is not in the index
+     */
+    public String preview(String fileName, String query) {
+        try {
+            if (shards != null) {
+                return shards.preview(fileName, query);
+            }
+            try (IndexReader reader = openReader()) {
+                return preview(reader, fileName, query);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return "Error loading preview: " + e.getMessage();
+        }
+    }
+
+    /*
+    * Preview from one reader, the whole index or the shard process that holds the document
+    * @Output Preview text, or null if the document is not in the reader
+    * */
+    static String preview(IndexReader reader, String fileName, String query) throws IOException {
+        IndexSearcher searcher = new IndexSearcher(reader);
+        TopDocs match = searcher.search(new TermQuery(new Term("FileKey", fileName)), 1);
+        if (match.scoreDocs.length == 0) {
+            return null;
+        }
+
+        Query q = query == null ? null : QUERY_BUILDER.createBooleanQuery("Preview", query);
+        if (q != null) {
+            UnifiedHighlighter highlighter = new UnifiedHighlighter(searcher, Analyzers.standard());
+            highlighter.setMaxLength(PREVIEW_LENGTH);
+            highlighter.setFormatter(new DefaultPassageFormatter("[", "]", "\n...\n", false));
+            // Falls back to the leading passages when no query term occurs in the document
+            String[] snippets = highlighter.highlight("Preview", q, match, PREVIEW_PASSAGES);
+            if (snippets[0] != null) {
+                return snippets[0];
+            }
+        }
+
+        int docId = match.scoreDocs[0].doc;
+        String text = storedField(reader, docId, "Preview");
+        if (text == null) {
+            // Indexed before the Preview field existed
+            text = storedField(reader, docId, "Content");
+        }
+        return text.length() >= PREVIEW_LENGTH ? text.substring(0, PREVIEW_LENGTH) + "\n..." : text;
+    }
+
+    // Stands in for a hit's stored document, which is never loaded whole
+    private static Document fileNameDocument(String fileName) {
+        Document doc = new Document();
+        doc.add(new StoredField("FileName", fileName));
+        return doc;
+    }
+
+    /*
+    * Reads one stored field and stops, so the fields stored after it are never decoded
+    * */
+    static String storedField(IndexReader reader, int docId, String field) throws IOException {
+        String[] value = new String[1];
+        reader.document(docId, new StoredFieldVisitor() {
+            @Override
+            public Status needsField(FieldInfo fieldInfo) {
+                if (value[0] != null) {
+                    return Status.STOP;
+                }
+                return fieldInfo.name.equals(field) ? Status.YES : Status.NO;
+            }
+
+            @Override
+            public void stringField(FieldInfo fieldInfo, byte[] bytes) {
+                value[0] = new String(bytes, StandardCharsets.UTF_8);
+            }
+        });
+        return value[0];
+    }
+
+    /**
+     * Saves clusters returned by {@link #handle(String, int)} or {@link #loadClusters(Path)},
+     * together with the vocabulary and index generation they were computed on, so they can be
+     * reloaded without recomputation
+     * @param clusters Clusters to save
+     * @param file Destination file
+     * @throws IOException If the file cannot be written
+     * @throws IllegalArgumentException If the clusters did not come from handle or loadClusters
+     */
+    public void saveClusters(List<CentroidCluster<DoublePoint>> clusters, Path file) throws IOException {
+        if (!(clusters instanceof Clustering)) {
+            throw new IllegalArgumentException("Only clusters from handle() or loadClusters() can be saved");
+        }
+        Clustering clustering = (Clustering) clusters;
+        ClusterStore.write(file, clustering, clustering.vocabulary.get(), clustering.generation);
+    }
+
+    /*
+    * Reloads clusters saved by saveClusters; openCluster works on the result as after a search.
+    * Doc ids are those of the generation the file names, not necessarily the live one.
+    * */
+    public List<CentroidCluster<DoublePoint>> loadClusters(Path file) throws IOException {
+        ClusterStore store = ClusterStore.read(file);
+        Clustering clusters = new Clustering(store.toClusters(), store::vocabulary, store.generation());
+        String live = IndexLayout.current(INDEX_ROOT).getFileName().toString();
+        if (!store.generation().isEmpty() && !store.generation().equals(live)) {
+            System.err.println("Clusters in " + file + " were computed on " + store.generation()
+                    + ", the live index is " + live);
+        }
+        this.docMap = new HashMap<>();
         return clusters;
     }
 
@@ -94,14 +440,21 @@ public class QueryHandler {
         }
 
         // Iterate over points in the cluster
+        Map<DoublePoint, Document> docs = this.docMap;
         for (DoublePoint point : cluster.getPoints()) {
-            Document doc = docMap.get(point);
-            if (doc == null) {
-                System.out.println("No document found for point: " + point);
-                continue;  // Skip if document is not found
+            String fileName;
+            if (point instanceof DocumentPoint) {
+                // Also covers clusters loaded from a file, which have no Document behind them
+                fileName = ((DocumentPoint) point).getFileName();
+            } else {
+                Document doc = docs == null ? null : docs.get(point);
+                if (doc == null) {
+                    System.out.println("No document found for point: " + point);
+                    continue;  // Skip if document is not found
+                }
+                fileName = doc.get("FileName");
             }
 
-            String fileName = doc.get("FileName");
             if (fileName != null) {
                 System.out.println(" - " + fileName);
                 files.add(fileName);
@@ -114,50 +467,70 @@ public class QueryHandler {
         return files;
     }
 
-    private Set<String> buildGlobalVocabulary(IndexReader reader, String fieldName) throws IOException {
-        Set<String> vocabulary = new HashSet<>();
+    /*
+    * Opens the live index generation, a sharded one as one MultiReader
+    * */
+    private IndexReader openReader() throws IOException {
+        return openReader(IndexLayout.current(INDEX_ROOT));
+    }
 
-        for (int docId = 0; docId < reader.maxDoc(); docId++) {
-            Terms terms = reader.getTermVector(docId, fieldName);
-            if (terms != null) {
-                TermsEnum termsEnum = terms.iterator();
-                while (termsEnum.next() != null) {
-                    vocabulary.add(termsEnum.term().utf8ToString());
-                }
-            }
+    private IndexReader openReader(Path generation) throws IOException {
+        IndexReader reader = IndexLayout.open(generation);
+        if (reader instanceof MultiReader) {
+            log("Searching " + reader.getContext().children().size() + " shards.");
         }
-        System.out.println("Global Vocabulary Size: " + vocabulary.size());
-        return vocabulary;
+        return reader;
     }
 
-    private DoublePoint createTFIDFVectorWithVocabulary(Terms terms, IndexReader reader, Set<String> vocabulary) throws IOException {
-        Map<String, Double> tfidfMap = new HashMap<>();
+    /**
+     * Clusters of one query, with the vocabulary behind their vector dimensions and the name of
+     * the index generation their doc ids belong to, as {@link ClusterStore} records them
+     */
+    static final class Clustering extends ArrayList<CentroidCluster<DoublePoint>> {
+        private static final long serialVersionUID = 1L;
 
-        // Initialize TF-IDF vector with all terms in the vocabulary
-        for (String term : vocabulary) {
-            tfidfMap.put(term, 0.0);
+        final transient Supplier<List<String>> vocabulary;
+        final String generation;
+
+        Clustering(List<CentroidCluster<DoublePoint>> clusters, Supplier<List<String>> vocabulary,
+                   String generation) {
+            super(clusters);
+            this.vocabulary = vocabulary;
+            this.generation = generation;
         }
+    }
 
-        if (terms != null) {
-            TermsEnum termsEnum = terms.iterator();
-            while (termsEnum.next() != null) {
-                String term = termsEnum.term().utf8ToString();
-                long termFreq = termsEnum.totalTermFreq();
-                if (vocabulary.contains(term)) {
-                    double idf = Math.log(1 + (reader.numDocs() / (double) reader.docFreq(new Term("Content", term))));
-                    tfidfMap.put(term, termFreq * idf);
-                }
-            }
+    private static final class CachedCentroids {
+        final Path file;
+        final FileTime modified;
+        final long size;
+        final double[][] centroids;
+
+        CachedCentroids(Path file, FileTime modified, long size, double[][] centroids) {
+            this.file = file;
+            this.modified = modified;
+            this.size = size;
+            this.centroids = centroids;
         }
+    }
 
-        // Convert TF-IDF map to a vector
-        double[] vector = tfidfMap.values().stream().mapToDouble(Double::doubleValue).toArray();
-        return new DoublePoint(vector);
+    /*
+    * Time spent in each stage of one handle() call; -1 for a stage that did not run
+    * */
+    static class StageTimings {
+        long searchNanos = -1;
+        long vectorizeNanos = -1;
+        long clusterNanos = -1;
+
+        void reset() {
+            searchNanos = vectorizeNanos = clusterNanos = -1;
+        }
     }
 
     public static void main(String[] args) {
         String query = "newton";
-        QueryHandler handler = new QueryHandler();
+        // With a port, the index is searched through the ShardServer processes listening there
+        QueryHandler handler = new QueryHandler(true, args.length > 0 ? Integer.parseInt(args[0]) : 0);
         handler.handle(query, 5);
 
     }
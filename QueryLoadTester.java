@@ -0,0 +1,261 @@
+package org.example;
+
+import org.apache.commons.math3.ml.clustering.DoublePoint;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Replays queries against {@link QueryHandler} at a fixed rate from many concurrent clients
+ * and reports throughput and latency percentiles per stage.
+ * <p>
+ * The load is open-loop: query i is due at {@code start + i / qps}, whether or not a client
+ * is free at that moment. Latency is measured from that due time, not from when a client
+ * got round to sending it, so a stall shows up in the latencies of every query it delayed
+ * (no coordinated omission).
+ */
+public class QueryLoadTester {
+    private final List<String> queries;
+    private final double qps;
+    private final int clients;
+    private final int k;
+    private final int shardPort;
+
+    public QueryLoadTester(List<String> queries, double qps, int clients, int k) {
+        this(queries, qps, clients, k, 0);
+    }
+
+    /*
+    * @param shardPort Base port of ShardServer processes to query through, 0 to search in this process
+    * */
+    public QueryLoadTester(List<String> queries, double qps, int clients, int k, int shardPort) {
+        if (queries.isEmpty()) {
+            throw new IllegalArgumentException("No queries to replay");
+        }
+        if (!(qps > 0) || Double.isInfinite(qps)) {
+            throw new IllegalArgumentException("Invalid QPS: " + qps);
+        }
+        if (clients < 1) {
+            throw new IllegalArgumentException("Invalid number of clients: " + clients);
+        }
+        this.queries = queries;
+        this.qps = qps;
+        this.clients = clients;
+        this.k = k;
+        this.shardPort = shardPort;
+    }
+
+    /**
+     * Runs the load for the given duration and prints the report
+     * @param seconds Length of the run, at least 1
+     * @throws InterruptedException If interrupted while waiting for the clients
+     */
+    public void run(int seconds) throws InterruptedException {
+        QueryHandler handler = new QueryHandler(false, shardPort);
+        if (seconds < 1) {
+            throw new IllegalArgumentException("Invalid duration: " + seconds);
+        }
+        long total = (long) (qps * seconds);
+        AtomicLong next = new AtomicLong();
+        AtomicInteger failures = new AtomicInteger();
+        List<Recorder> recorders = new ArrayList<>();
+
+        System.out.println("Replaying " + total + " queries at " + qps + " QPS with " + clients + " clients ...");
+        ExecutorService pool = Executors.newFixedThreadPool(clients);
+        long start = System.nanoTime();
+        for (int c = 0; c < clients; c++) {
+            Recorder recorder = new Recorder();
+            recorders.add(recorder);
+            pool.execute(() -> {
+                QueryHandler.StageTimings timings = new QueryHandler.StageTimings();
+                long i;
+                while ((i = next.getAndIncrement()) < total) {
+                    // From i, not by adding a rounded interval, so the schedule never drifts
+                    long due = start + (long) (i * 1e9 / qps);
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) {
+                        try {
+                            TimeUnit.NANOSECONDS.sleep(wait);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    timings.reset();
+                    try {
+                        Map<DoublePoint, Document> docs = new HashMap<>();
+                        handler.handle(queries.get((int) (i % queries.size())), k, docs, timings);
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                    }
+                    // Failed queries count too: a fast failure must not hide behind the successes
+                    recorder.record(System.nanoTime() - due, timings);
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        long elapsed = System.nanoTime() - start;
+
+        Recorder all = new Recorder();
+        recorders.forEach(all::addAll);
+        report(all, failures.get(), elapsed);
+    }
+
+    private void report(Recorder all, int failures, long elapsedNanos) {
+        double elapsedSeconds = elapsedNanos / 1e9;
+        System.out.printf("Completed %d queries (%d failed) in %.1f s: %.1f QPS (target %.1f)%n",
+                all.total.size, failures, elapsedSeconds, all.total.size / elapsedSeconds, qps);
+        System.out.printf("%-10s %8s %10s %10s %10s %10s %10s %10s%n", "stage (ms)", "count", "mean", "p50", "p95", "p99",
+                "p999", "max");
+        printRow("total", all.total);
+        printRow("search", all.search);
+        printRow("vectorize", all.vectorize);
+        printRow("cluster", all.cluster);
+    }
+
+    private static void printRow(String stage, LongList values) {
+        long[] sorted = Arrays.copyOf(values.values, values.size);
+        Arrays.sort(sorted);
+        double mean = sorted.length == 0 ? 0 : Arrays.stream(sorted).average().getAsDouble();
+        System.out.printf("%-10s %8d %10.2f %10.2f %10.2f %10.2f %10.2f %10.2f%n", stage, sorted.length, mean / 1e6,
+                percentile(sorted, 0.50) / 1e6, percentile(sorted, 0.95) / 1e6,
+                percentile(sorted, 0.99) / 1e6, percentile(sorted, 0.999) / 1e6,
+                percentile(sorted, 1.0) / 1e6);
+    }
+
+    // Nearest-rank percentile
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(p * sorted.length);
+        return sorted[Math.max(rank, 1) - 1];
+    }
+
+    /*
+    * Reads one query per non-empty line
+    * */
+    static List<String> readQueryLog(Path log) throws IOException {
+        List<String> queries = new ArrayList<>();
+        for (String line : Files.readAllLines(log, StandardCharsets.UTF_8)) {
+            if (!line.trim().isEmpty()) {
+                queries.add(line.trim());
+            }
+        }
+        return queries;
+    }
+
+    /*
+    * Builds one- and two-term queries from terms that occur in at least two documents
+    * */
+    static List<String> generateQueries(int count, long seed) throws IOException {
+        List<String> terms = new ArrayList<>();
+        try (IndexReader reader = IndexLayout.openReader(Paths.get("index"))) {
+            Terms content = MultiFields.getTerms(reader, "Content");
+            if (content != null) {
+                TermsEnum termsEnum = content.iterator();
+                BytesRef term;
+                while ((term = termsEnum.next()) != null) {
+                    if (termsEnum.docFreq() >= 2) {
+                        terms.add(term.utf8ToString());
+                    }
+                }
+            }
+        }
+
+        List<String> queries = new ArrayList<>();
+        if (terms.isEmpty()) {
+            return queries;
+        }
+        Random random = new Random(seed);
+        for (int i = 0; i < count; i++) {
+            String query = terms.get(random.nextInt(terms.size()));
+            if (random.nextBoolean()) {
+                query += " " + terms.get(random.nextInt(terms.size()));
+            }
+            queries.add(query);
+        }
+        return queries;
+    }
+
+    // Latencies of one client thread, merged once the run is over
+    private static class Recorder {
+        final LongList total = new LongList();
+        final LongList search = new LongList();
+        final LongList vectorize = new LongList();
+        final LongList cluster = new LongList();
+
+        // Stages a query never reached (too few hits, a failure) are left out of their rows
+        void record(long totalNanos, QueryHandler.StageTimings timings) {
+            total.add(totalNanos);
+            if (timings.searchNanos >= 0) {
+                search.add(timings.searchNanos);
+            }
+            if (timings.vectorizeNanos >= 0) {
+                vectorize.add(timings.vectorizeNanos);
+            }
+            if (timings.clusterNanos >= 0) {
+                cluster.add(timings.clusterNanos);
+            }
+        }
+
+        void addAll(Recorder other) {
+            total.addAll(other.total);
+            search.addAll(other.search);
+            vectorize.addAll(other.vectorize);
+            cluster.addAll(other.cluster);
+        }
+    }
+
+    private static class LongList {
+        long[] values = new long[1024];
+        int size;
+
+        void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        void addAll(LongList other) {
+            for (int i = 0; i < other.size; i++) {
+                add(other.values[i]);
+            }
+        }
+    }
+
+    /*
+    * Usage: QueryLoadTester <qps> <clients> <seconds> [queryLog|-] [k] [shardPort]
+    * Without a query log, or with -, 1000 queries are generated from the index vocabulary.
+    * With a shard port, queries go to the ShardServer processes listening there.
+    * */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 3) {
+            System.err.println("Usage: QueryLoadTester <qps> <clients> <seconds> [queryLog|-] [k] [shardPort]");
+            return;
+        }
+        List<String> queries = args.length > 3 && !args[3].equals("-")
+                ? readQueryLog(Paths.get(args[3]))
+                : generateQueries(1000, 42);
+        int k = args.length > 4 ? Integer.parseInt(args[4]) : 3;
+        int shardPort = args.length > 5 ? Integer.parseInt(args[5]) : 0;
+        new QueryLoadTester(queries, Double.parseDouble(args[0]), Integer.parseInt(args[1]), k, shardPort)
+                .run(Integer.parseInt(args[2]));
+    }
+}
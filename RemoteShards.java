@@ -0,0 +1,275 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.rmi.NotBoundException;
+import java.rmi.registry.LocateRegistry;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Client side of the {@link ShardServer} processes of the live index: scatters a query over all
+ * of them and gathers one top-N with global doc ids, as a {@code MultiReader} over the shards
+ * would return it. The shards' statistics are merged once per generation; a query that meets
+ * shards of different generations, e.g. during a publish, is retried on the new one.
+ */
+final class RemoteShards {
+    private static final int ATTEMPTS = 3;
+
+    // Shard calls mostly wait on the network, so every call of a query gets its own thread
+    private static final ExecutorService POOL = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "shard-client");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Path root;
+    private final int basePort;
+    private final Map<Integer, ShardService> services = new ConcurrentHashMap<>();
+    private volatile Merged merged;
+
+    RemoteShards(Path root, int basePort) {
+        if (basePort < 1) {
+            throw new IllegalArgumentException("Invalid port: " + basePort);
+        }
+        this.root = root;
+        this.basePort = basePort;
+    }
+
+    /**
+     * Searches all shards
+     * @param query Query text
+     * @param n Number of hits
+     * @param termVectors true to fetch every hit's term vector for {@link Result#vectorizer}
+     * @return Merged top hits
+     * @throws IOException If a shard cannot be reached or the shards keep serving different generations
+     */
+    Result search(String query, int n, boolean termVectors) throws IOException {
+        Query q = QueryHandler.QUERY_BUILDER.createBooleanQuery("Content", query);
+        for (int attempt = 0; attempt < ATTEMPTS; attempt++) {
+            Merged global = merged();
+            if (global == null) {
+                continue;
+            }
+            ShardService.QueryStatistics statistics = global.statistics(q);
+            List<ShardService.Hits> shardHits = scatter(global.numShards,
+                    service -> service.search(query, n, statistics, termVectors));
+            boolean sameGeneration = true;
+            for (ShardService.Hits hits : shardHits) {
+                sameGeneration &= hits.generation.equals(global.generation);
+            }
+            if (sameGeneration) {
+                return global.merge(shardHits, n);
+            }
+            merged = null;
+        }
+        throw new IOException("Shard processes did not agree on an index generation");
+    }
+
+    /*
+    * @Output Preview from the shard the file was routed to, null if it is not in the index
+    * */
+    String preview(String fileName, String query) throws IOException {
+        int numShards = IndexLayout.indexDirectories(IndexLayout.current(root)).size();
+        return call(ShardedIndexHandler.route(fileName, numShards), service -> service.preview(fileName, query));
+    }
+
+    /*
+    * Statistics of the live generation, fetched from the shards when the generation changes
+    * @Output Merged statistics, or null if not every shard serves the live generation yet
+    * */
+    private Merged merged() throws IOException {
+        Path generation = IndexLayout.current(root);
+        String name = generation.getFileName().toString();
+        Merged global = this.merged;
+        if (global != null && global.generation.equals(name)) {
+            return global;
+        }
+        List<ShardService.Statistics> statistics = scatter(IndexLayout.indexDirectories(generation).size(),
+                ShardService::statistics);
+        for (ShardService.Statistics shard : statistics) {
+            if (!shard.generation.equals(name)) {
+                return null;
+            }
+        }
+        global = new Merged(name, statistics);
+        this.merged = global;
+        return global;
+    }
+
+    private <T> List<T> scatter(int numShards, ShardCall<T> call) throws IOException {
+        List<Future<T>> tasks = new ArrayList<>(numShards);
+        for (int shard = 0; shard < numShards; shard++) {
+            final int shardId = shard;
+            tasks.add(POOL.submit(() -> call(shardId, call)));
+        }
+        List<T> results = new ArrayList<>(numShards);
+        try {
+            for (Future<T> task : tasks) {
+                results.add(task.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while searching shards", e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException
+                    ? (IOException) e.getCause()
+                    : new IOException("Error searching shards", e.getCause());
+        }
+        return results;
+    }
+
+    private <T> T call(int shard, ShardCall<T> call) throws IOException {
+        try {
+            ShardService service = services.get(shard);
+            if (service == null) {
+                service = (ShardService) LocateRegistry.getRegistry("127.0.0.1", basePort + shard)
+                        .lookup(ShardService.NAME);
+                services.put(shard, service);
+            }
+            return call.apply(service);
+        } catch (NotBoundException e) {
+            throw new IOException("No shard server on port " + (basePort + shard), e);
+        } catch (IOException e) {
+            // Looked up again next time, e.g. after the shard process was restarted
+            services.remove(shard);
+            throw new IOException("Error calling shard " + shard + " on port " + (basePort + shard), e);
+        }
+    }
+
+    private interface ShardCall<T> {
+        T apply(ShardService service) throws IOException;
+    }
+
+    /**
+     * Hits of all shards. Doc ids are global: a shard's ids follow the maxDoc of the shards
+     * before it, as in a {@code MultiReader}.
+     */
+    static final class Result {
+        final String generation;
+        final DocumentVectorizer vectorizer;
+        final int[] docs;
+        final ShardService.Hit[] hits;
+
+        Result(String generation, DocumentVectorizer vectorizer, int[] docs, ShardService.Hit[] hits) {
+            this.generation = generation;
+            this.vectorizer = vectorizer;
+            this.docs = docs;
+            this.hits = hits;
+        }
+    }
+
+    // Statistics of all shards of one generation, summed as a MultiReader sums them
+    private static final class Merged {
+        final String generation;
+        final int numShards;
+        final int[] docBases;
+        final long maxDoc;
+        final long docCount;
+        final long sumTotalTermFreq;
+        final long sumDocFreq;
+        final Map<BytesRef, long[]> terms = new TreeMap<>();
+        final DocumentVectorizer vectorizer;
+
+        Merged(String generation, List<ShardService.Statistics> shards) {
+            this.generation = generation;
+            this.numShards = shards.size();
+            this.docBases = new int[numShards];
+            long maxDoc = 0;
+            long docCount = 0;
+            long sumTotalTermFreq = 0;
+            long sumDocFreq = 0;
+            int numDocs = 0;
+            for (int shard = 0; shard < numShards; shard++) {
+                ShardService.Statistics statistics = shards.get(shard);
+                docBases[shard] = (int) maxDoc;
+                maxDoc += statistics.maxDoc;
+                numDocs += statistics.numDocs;
+                docCount += statistics.docCount;
+                sumTotalTermFreq += statistics.sumTotalTermFreq;
+                sumDocFreq += statistics.sumDocFreq;
+                for (int i = 0; i < statistics.terms.length; i++) {
+                    long[] term = terms.computeIfAbsent(new BytesRef(statistics.terms[i]), key -> new long[2]);
+                    term[0] += statistics.docFreqs[i];
+                    term[1] += statistics.totalTermFreqs[i];
+                }
+            }
+            this.maxDoc = maxDoc;
+            this.docCount = docCount;
+            this.sumTotalTermFreq = sumTotalTermFreq;
+            this.sumDocFreq = sumDocFreq;
+
+            // BytesRef order is the index's term order, so dimensions match the in-process vectorizer
+            List<BytesRef> vocabulary = new ArrayList<>(terms.keySet());
+            long[] docFreqs = new long[vocabulary.size()];
+            for (int i = 0; i < docFreqs.length; i++) {
+                docFreqs[i] = terms.get(vocabulary.get(i))[0];
+            }
+            this.vectorizer = new DocumentVectorizer(vocabulary, docFreqs, numDocs);
+        }
+
+        ShardService.QueryStatistics statistics(Query query) {
+            Set<Term> queryTerms = new HashSet<>();
+            collectTerms(query, queryTerms);
+            Map<String, long[]> statistics = new HashMap<>();
+            for (Term term : queryTerms) {
+                long[] global = term.field().equals("Content") ? terms.get(term.bytes()) : null;
+                if (global != null) {
+                    statistics.put(term.text(), global);
+                }
+            }
+            return new ShardService.QueryStatistics(maxDoc, docCount, sumTotalTermFreq, sumDocFreq, statistics);
+        }
+
+        Result merge(List<ShardService.Hits> shardHits, int n) {
+            // A ScoreDoc's doc is its position in the shard's hits; merge breaks ties by shard,
+            // then by that position, which keeps the shard's own order
+            TopDocs[] shardDocs = new TopDocs[numShards];
+            for (int shard = 0; shard < numShards; shard++) {
+                ShardService.Hits hits = shardHits.get(shard);
+                ScoreDoc[] scoreDocs = new ScoreDoc[hits.hits.length];
+                for (int i = 0; i < scoreDocs.length; i++) {
+                    scoreDocs[i] = new ScoreDoc(i, hits.hits[i].score);
+                }
+                shardDocs[shard] = new TopDocs(hits.totalHits, scoreDocs, hits.maxScore);
+            }
+            ScoreDoc[] top = TopDocs.merge(n, shardDocs).scoreDocs;
+
+            int[] docs = new int[top.length];
+            ShardService.Hit[] hits = new ShardService.Hit[top.length];
+            for (int i = 0; i < top.length; i++) {
+                hits[i] = shardHits.get(top[i].shardIndex).hits[top[i].doc];
+                docs[i] = docBases[top[i].shardIndex] + hits[i].doc;
+            }
+            return new Result(generation, vectorizer, docs, hits);
+        }
+    }
+
+    /*
+    * Terms whose statistics a query's scores depend on, for the query types QueryBuilder creates;
+    * other queries score with shard-local statistics
+    * */
+    private static void collectTerms(Query query, Set<Term> terms) {
+        if (query instanceof TermQuery) {
+            terms.add(((TermQuery) query).getTerm());
+        } else if (query instanceof BooleanQuery) {
+            for (BooleanClause clause : (BooleanQuery) query) {
+                collectTerms(clause.getQuery(), terms);
+            }
+        } else if (query instanceof SynonymQuery) {
+            terms.addAll(((SynonymQuery) query).getTerms());
+        } else if (query instanceof PhraseQuery) {
+            terms.addAll(Arrays.asList(((PhraseQuery) query).getTerms()));
+        } else if (query instanceof BoostQuery) {
+            collectTerms(((BoostQuery) query).getQuery(), terms);
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package org.example;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.RMIServerSocketFactory;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Serves one shard of the live index as its own process, for {@link QueryHandler}s created with
+ * a shard port. Shard i listens on basePort + i, on the loopback interface only.
+ * The server follows the index: it switches to a new generation when CURRENT changes and
+ * reopens its reader when the shard's commit changes, e.g. after {@link CorpusClusterer}
+ * stored cluster assignments. Requests still running on the old reader finish on it.
+ */
+public class ShardServer implements ShardService {
+    static final int DEFAULT_BASE_PORT = 1099;
+
+    // Kept reachable so the registry and the exported server are not collected
+    private static Registry registry;
+    private static ShardServer server;
+
+    private final Path root;
+    private final int shard;
+    private Served served;
+
+    ShardServer(Path root, int shard) {
+        if (shard < 0) {
+            throw new IndexOutOfBoundsException("Invalid shard: " + shard);
+        }
+        this.root = root;
+        this.shard = shard;
+    }
+
+    @Override
+    public Statistics statistics() throws IOException {
+        Served current = acquire();
+        try {
+            IndexReader reader = current.reader;
+            int size = 0;
+            String[] terms = new String[16];
+            int[] docFreqs = new int[16];
+            long[] totalTermFreqs = new long[16];
+            Terms contentTerms = MultiFields.getTerms(reader, "Content");
+            if (contentTerms != null) {
+                TermsEnum termsEnum = contentTerms.iterator();
+                BytesRef term;
+                while ((term = termsEnum.next()) != null) {
+                    if (size == terms.length) {
+                        terms = Arrays.copyOf(terms, size * 2);
+                        docFreqs = Arrays.copyOf(docFreqs, size * 2);
+                        totalTermFreqs = Arrays.copyOf(totalTermFreqs, size * 2);
+                    }
+                    terms[size] = term.utf8ToString();
+                    docFreqs[size] = termsEnum.docFreq();
+                    totalTermFreqs[size++] = termsEnum.totalTermFreq();
+                }
+            }
+            CollectionStatistics collection = new IndexSearcher(reader).collectionStatistics("Content");
+            return new Statistics(current.generation, reader.maxDoc(), reader.numDocs(), collection.docCount(),
+                    collection.sumTotalTermFreq(), collection.sumDocFreq(), Arrays.copyOf(terms, size),
+                    Arrays.copyOf(docFreqs, size), Arrays.copyOf(totalTermFreqs, size));
+        } finally {
+            current.reader.decRef();
+        }
+    }
+
+    @Override
+    public Hits search(String query, int n, QueryStatistics statistics, boolean termVectors) throws IOException {
+        Served current = acquire();
+        try {
+            IndexReader reader = current.reader;
+            Query q = QueryHandler.QUERY_BUILDER.createBooleanQuery("Content", query);
+            if (q == null) {
+                return new Hits(current.generation, 0, Float.NaN, new Hit[0]);
+            }
+            TopDocs topDocs = new GlobalStatisticsSearcher(reader, statistics).search(q, n);
+
+            Hit[] hits = new Hit[topDocs.scoreDocs.length];
+            for (int i = 0; i < hits.length; i++) {
+                ScoreDoc hit = topDocs.scoreDocs[i];
+                String[] terms = null;
+                long[] freqs = null;
+                Terms vector = termVectors ? reader.getTermVector(hit.doc, "Content") : null;
+                if (vector != null) {
+                    int size = vector.size() > 0 ? (int) vector.size() : 16;
+                    terms = new String[size];
+                    freqs = new long[size];
+                    int next = 0;
+                    TermsEnum termsEnum = vector.iterator();
+                    BytesRef term;
+                    while ((term = termsEnum.next()) != null) {
+                        if (next == terms.length) {
+                            terms = Arrays.copyOf(terms, next * 2);
+                            freqs = Arrays.copyOf(freqs, next * 2);
+                        }
+                        terms[next] = term.utf8ToString();
+                        freqs[next++] = termsEnum.totalTermFreq();
+                    }
+                    terms = Arrays.copyOf(terms, next);
+                    freqs = Arrays.copyOf(freqs, next);
+                }
+                hits[i] = new Hit(hit.doc, hit.score, QueryHandler.storedField(reader, hit.doc, "FileName"),
+                        QueryHandler.clusterId(reader, hit.doc), QueryHandler.clusterSimilarity(reader, hit.doc),
+                        terms, freqs);
+            }
+            return new Hits(current.generation, topDocs.totalHits, topDocs.getMaxScore(), hits);
+        } finally {
+            current.reader.decRef();
+        }
+    }
+
+    @Override
+    public String preview(String fileName, String query) throws IOException {
+        Served current = acquire();
+        try {
+            return QueryHandler.preview(current.reader, fileName, query);
+        } finally {
+            current.reader.decRef();
+        }
+    }
+
+    /*
+    * Reader of this shard in the live generation, with a reference the caller must release
+    * */
+    private synchronized Served acquire() throws IOException {
+        Path generation = IndexLayout.current(root);
+        if (served == null || !served.path.equals(generation)) {
+            List<Path> directories = IndexLayout.indexDirectories(generation);
+            if (shard >= directories.size()) {
+                throw new IOException("Index " + generation + " has no shard " + shard);
+            }
+            DirectoryReader reader = DirectoryReader.open(FSDirectory.open(directories.get(shard)));
+            replace(new Served(generation, reader));
+            System.out.println("Serving " + directories.get(shard));
+        } else {
+            DirectoryReader reader = DirectoryReader.openIfChanged(served.reader);
+            if (reader != null) {
+                replace(new Served(generation, reader));
+            }
+        }
+        served.reader.incRef();
+        return served;
+    }
+
+    private void replace(Served next) throws IOException {
+        Served previous = served;
+        served = next;
+        if (previous != null) {
+            previous.reader.decRef();
+        }
+    }
+
+    private static final class Served {
+        final Path path;
+        final String generation;
+        final DirectoryReader reader;
+
+        Served(Path path, DirectoryReader reader) {
+            this.path = path;
+            this.generation = path.getFileName().toString();
+            this.reader = reader;
+        }
+    }
+
+    /*
+    * Scores Content with the statistics of all shards instead of this shard's own, so scores
+    * are those of a MultiReader over every shard and top hits merge across shards
+    * */
+    private static final class GlobalStatisticsSearcher extends IndexSearcher {
+        private final QueryStatistics statistics;
+
+        GlobalStatisticsSearcher(IndexReader reader, QueryStatistics statistics) {
+            super(reader);
+            this.statistics = statistics;
+        }
+
+        @Override
+        public TermStatistics termStatistics(Term term, TermContext context) throws IOException {
+            long[] global = term.field().equals("Content") ? statistics.terms.get(term.text()) : null;
+            if (global == null) {
+                return super.termStatistics(term, context);
+            }
+            return new TermStatistics(term.bytes(), global[0], global[1]);
+        }
+
+        @Override
+        public CollectionStatistics collectionStatistics(String field) throws IOException {
+            if (!field.equals("Content")) {
+                return super.collectionStatistics(field);
+            }
+            return new CollectionStatistics(field, statistics.maxDoc, statistics.docCount,
+                    statistics.sumTotalTermFreq, statistics.sumDocFreq);
+        }
+    }
+
+    // Binds to 127.0.0.1 only: shards are local processes and the API has no authentication
+    private static final class LoopbackSockets implements RMIServerSocketFactory {
+        @Override
+        public ServerSocket createServerSocket(int port) throws IOException {
+            return new ServerSocket(port, 0, InetAddress.getLoopbackAddress());
+        }
+
+        // Equal factories let the registry and the server share one port
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof LoopbackSockets;
+        }
+
+        @Override
+        public int hashCode() {
+            return LoopbackSockets.class.hashCode();
+        }
+    }
+
+    /*
+    * Usage: ShardServer <shard> [basePort]
+    * Serves shard i of the live index on 127.0.0.1:basePort+i (default base port 1099), e.g.
+    * one process per shard after ShardedIndexHandler. Query through QueryHandler(verbose, basePort).
+    * */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: ShardServer <shard> [basePort]");
+            return;
+        }
+        int shard = Integer.parseInt(args[0]);
+        int port = (args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_BASE_PORT) + shard;
+
+        // Stubs handed to clients name the loopback address the server listens on
+        System.setProperty("java.rmi.server.hostname", InetAddress.getLoopbackAddress().getHostAddress());
+        server = new ShardServer(Paths.get("index"), shard);
+        // Fails now rather than on the first query if the shard does not exist
+        server.acquire().reader.decRef();
+
+        LoopbackSockets sockets = new LoopbackSockets();
+        registry = LocateRegistry.createRegistry(port, null, sockets);
+        registry.rebind(NAME, UnicastRemoteObject.exportObject(server, port, null, sockets));
+        System.out.println("Shard " + shard + " listening on port " + port);
+    }
+}
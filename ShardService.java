@@ -0,0 +1,131 @@
+package org.example;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.rmi.Remote;
+import java.util.Map;
+
+/**
+ * Search API of one shard served by its own process ({@link ShardServer}). A {@link QueryHandler}
+ * created with a shard port sends every query to all shard processes and merges their hits,
+ * so handle, browse and preview return what they return over the in-process shards.
+ * <p>
+ * A shard alone only knows its own term statistics. The client therefore merges the
+ * {@link Statistics} of all shards once per index generation, and sends each query the global
+ * statistics of its terms; shards score with those, and TF-IDF vectors are built with the
+ * merged vocabulary, as over a {@code MultiReader}.
+ */
+public interface ShardService extends Remote {
+    String NAME = "ShardService";
+
+    /*
+    * @Output Generation, document counts and the Content terms dictionary of this shard
+    * */
+    Statistics statistics() throws IOException;
+
+    /**
+     * Searches the shard's Content field
+     * @param query Query text
+     * @param n Number of hits
+     * @param statistics Global statistics of the query's terms
+     * @param termVectors true to return the Content term vector of every hit
+     * @return Top hits with shard-local doc ids
+     * @throws IOException If the shard cannot be searched
+     */
+    Hits search(String query, int n, QueryStatistics statistics, boolean termVectors) throws IOException;
+
+    /*
+    * @Output Preview of a document of this shard, see QueryHandler.preview; null if it is not here
+    * */
+    String preview(String fileName, String query) throws IOException;
+
+    final class Statistics implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final String generation;
+        final int maxDoc;
+        final int numDocs;
+        final long docCount;
+        final long sumTotalTermFreq;
+        final long sumDocFreq;
+        // Content terms in index order, with their document and total frequencies
+        final String[] terms;
+        final int[] docFreqs;
+        final long[] totalTermFreqs;
+
+        Statistics(String generation, int maxDoc, int numDocs, long docCount, long sumTotalTermFreq,
+                   long sumDocFreq, String[] terms, int[] docFreqs, long[] totalTermFreqs) {
+            this.generation = generation;
+            this.maxDoc = maxDoc;
+            this.numDocs = numDocs;
+            this.docCount = docCount;
+            this.sumTotalTermFreq = sumTotalTermFreq;
+            this.sumDocFreq = sumDocFreq;
+            this.terms = terms;
+            this.docFreqs = docFreqs;
+            this.totalTermFreqs = totalTermFreqs;
+        }
+    }
+
+    // Global Content statistics for one query: the collection's and {docFreq, totalTermFreq} per term
+    final class QueryStatistics implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final long maxDoc;
+        final long docCount;
+        final long sumTotalTermFreq;
+        final long sumDocFreq;
+        final Map<String, long[]> terms;
+
+        QueryStatistics(long maxDoc, long docCount, long sumTotalTermFreq, long sumDocFreq,
+                        Map<String, long[]> terms) {
+            this.maxDoc = maxDoc;
+            this.docCount = docCount;
+            this.sumTotalTermFreq = sumTotalTermFreq;
+            this.sumDocFreq = sumDocFreq;
+            this.terms = terms;
+        }
+    }
+
+    final class Hits implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        // Generation that was searched, so a client can tell shards that switched mid-query
+        final String generation;
+        final long totalHits;
+        final float maxScore;
+        final Hit[] hits;
+
+        Hits(String generation, long totalHits, float maxScore, Hit[] hits) {
+            this.generation = generation;
+            this.totalHits = totalHits;
+            this.maxScore = maxScore;
+            this.hits = hits;
+        }
+    }
+
+    final class Hit implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final int doc;
+        final float score;
+        final String fileName;
+        // Precomputed cluster, -1 if none, and the similarity to its centroid
+        final long clusterId;
+        final double similarity;
+        // Content term vector, null if not requested or not indexed
+        final String[] terms;
+        final long[] freqs;
+
+        Hit(int doc, float score, String fileName, long clusterId, double similarity, String[] terms,
+            long[] freqs) {
+            this.doc = doc;
+            this.score = score;
+            this.fileName = fileName;
+            this.clusterId = clusterId;
+            this.similarity = similarity;
+            this.terms = terms;
+            this.freqs = freqs;
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package org.example;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Splits a source directory over N local shards. Every shard is a complete Lucene index
+ * in its own sub directory of an index generation ({@code index/gen-3/shard-0}, ...),
+ * so shards can be built in parallel threads of one process or by separate processes,
+ * each shard as its own resumable {@link IndexHandler} job in {@code index/staging-shards}.
+ * All shards go live together when the staging directory is published as the next
+ * generation. The generation records its shard count in a {@code SHARDS} file, so readers
+ * can tell a missing shard from a smaller index and ignore shards left over from a larger one.
+ * {@link QueryHandler} searches the live shards as one {@code MultiReader}, or, when every shard
+ * is served by its own {@link ShardServer} process, through those processes.
+ */
+public class ShardedIndexHandler {
+    static final String SHARD_PREFIX = "shard-";
+    static final String SHARDS_FILE = "SHARDS";
+
+    private final Path root;
+    private final int numShards;
+
+    public ShardedIndexHandler(int numShards) {
+        this("index", numShards);
+    }
+
+    public ShardedIndexHandler(String indexPath, int numShards) {
+        if (numShards < 1) {
+            throw new IllegalArgumentException("Invalid number of shards: " + numShards);
+        }
+        this.root = Paths.get(indexPath);
+        this.numShards = numShards;
+    }
+
+    /**
+     * Rebuilds all shards from the source directory, one thread per shard. Every shard is
+     * staged and resumable like a single {@link IndexHandler} job; the shards only go live,
+     * all at once, when every one of them is complete.
+     * @param source Directory holding the files to index
+     * @throws IOException If a shard cannot be written
+     */
+    protected void index(File source) throws IOException {
+        List<List<File>> partitions = partition(source);
+        if (partitions == null) {
+            return;
+        }
+        prepareStaging();
+        IndexHandler[] shards = new IndexHandler[numShards];
+        for (int shard = 0; shard < numShards; shard++) {
+            shards[shard] = new IndexHandler(root, shardPath(IndexLayout.shardStaging(root), shard));
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(
+                Math.min(numShards, Runtime.getRuntime().availableProcessors()));
+        try {
+            List<Future<?>> tasks = new ArrayList<>();
+            for (int shard = 0; shard < numShards; shard++) {
+                final int shardId = shard;
+                tasks.add(pool.submit(() -> {
+                    shards[shardId].build(jobId(source, shardId), partitions.get(shardId));
+                    return null;
+                }));
+            }
+            // Wait for every shard, even after a failure, so no build still holds its staging directory
+            IOException failure = null;
+            for (Future<?> task : tasks) {
+                try {
+                    task.get();
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = new IOException("Error indexing shard", e.getCause());
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while indexing shards", e);
+        } finally {
+            pool.shutdown();
+        }
+
+        IndexLayout.publish(root, IndexLayout.shardStaging(root));
+    }
+
+    /**
+     * Builds a single shard into the staging directory, leaving the other shards untouched.
+     * Used when every shard is indexed by its own process; the process that completes the
+     * last shard publishes them all.
+     * @param source Directory holding the files to index
+     * @param shard Shard number (0-based)
+     * @throws IOException If the shard cannot be written
+     */
+    protected void indexShard(File source, int shard) throws IOException {
+        if (shard < 0 || shard >= numShards) {
+            throw new IndexOutOfBoundsException("Invalid shard: " + shard);
+        }
+        List<List<File>> partitions = partition(source);
+        if (partitions == null) {
+            return;
+        }
+        prepareStaging();
+        new IndexHandler(root, shardPath(IndexLayout.shardStaging(root), shard))
+                .build(jobId(source, shard), partitions.get(shard));
+
+        for (int other = 0; other < numShards; other++) {
+            IndexHandler handler = new IndexHandler(root, shardPath(IndexLayout.shardStaging(root), other));
+            if (!handler.complete(jobId(source, other))) {
+                System.out.println("Shard " + shard + " done; waiting for shard " + other + " before publishing.");
+                return;
+            }
+        }
+        if (!IndexLayout.publish(root, IndexLayout.shardStaging(root))) {
+            System.out.println("Shards already published by another process.");
+        }
+    }
+
+    /*
+    * Removes everything from the staging directory that is not one of this job's shards,
+    * e.g. shards numbered N or higher from an earlier job with more shards, and records N
+    * */
+    private void prepareStaging() throws IOException {
+        Path staging = IndexLayout.shardStaging(root);
+        Files.createDirectories(staging);
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(staging)) {
+            for (Path path : stream) {
+                if (isShardDirectory(path) && shardNumber(path) < numShards) {
+                    continue;
+                }
+                if (path.getFileName().toString().startsWith(SHARDS_FILE)) {
+                    continue;
+                }
+                System.out.println("Removing stale " + path);
+                File file = path.toFile();
+                if (file.isDirectory()) {
+                    IndexHandler.deleteDirectory(file);
+                } else if (!file.delete()) {
+                    System.err.println("Failed to delete file: " + file.getAbsolutePath());
+                }
+            }
+        }
+        // Every process of the job writes the same count; a private temp file keeps the replace atomic
+        Path pending = Files.createTempFile(staging, SHARDS_FILE, ".tmp");
+        Files.write(pending, Integer.toString(numShards).getBytes(StandardCharsets.UTF_8));
+        Files.move(pending, staging.resolve(SHARDS_FILE), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private String jobId(File source, int shard) throws IOException {
+        return source.getCanonicalPath() + "#" + SHARD_PREFIX + shard + "/" + numShards;
+    }
+
+    private List<List<File>> partition(File source) {
+        if (!source.isDirectory()) {
+            System.out.println("Source is not a directory.");
+            return null;
+        }
+        File[] files = source.listFiles();
+        if (files == null || files.length == 0) {
+            System.out.println("No files to index.");
+            return null;
+        }
+
+        List<List<File>> partitions = new ArrayList<>(numShards);
+        for (int i = 0; i < numShards; i++) {
+            partitions.add(new ArrayList<>());
+        }
+        for (File file : files) {
+            if (file.isFile()) {
+                partitions.get(route(file.getName(), numShards)).add(file);
+            }
+        }
+        return partitions;
+    }
+
+    // Same file name always lands on the same shard, whichever process computes it
+    static int route(String fileName, int numShards) {
+        return Math.floorMod(fileName.hashCode(), numShards);
+    }
+
+    static Path shardPath(Path generation, int shard) {
+        return generation.resolve(SHARD_PREFIX + shard);
+    }
+
+    /**
+     * Lists the shard directories of an index generation, ordered by shard number
+     * @param indexRoot Generation directory
+     * @return Shard directories, empty if the index is not sharded
+     * @throws IOException If the index root cannot be listed
+     */
+    static List<Path> listShards(Path indexRoot) throws IOException {
+        List<Path> shards = new ArrayList<>();
+        if (!Files.isDirectory(indexRoot)) {
+            return shards;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(indexRoot, SHARD_PREFIX + "*")) {
+            for (Path path : stream) {
+                if (isShardDirectory(path)) {
+                    shards.add(path);
+                }
+            }
+        }
+        shards.sort((a, b) -> Integer.compare(shardNumber(a), shardNumber(b)));
+        return shards;
+    }
+
+    /**
+     * Shard directories of an index generation, checked against the shard count it records
+     * @param generation Generation directory
+     * @return Shard directories 0 to N-1, empty if the generation is not sharded
+     * @throws IOException If a shard below the recorded count is missing
+     */
+    static List<Path> expectedShards(Path generation) throws IOException {
+        List<Path> shards = listShards(generation);
+        Path countFile = generation.resolve(SHARDS_FILE);
+        if (!Files.exists(countFile)) {
+            return shards;
+        }
+        int expected = Integer.parseInt(new String(Files.readAllBytes(countFile), StandardCharsets.UTF_8).trim());
+        List<Path> valid = new ArrayList<>();
+        for (Path shard : shards) {
+            if (shardNumber(shard) < expected) {
+                valid.add(shard);
+            } else {
+                System.err.println("Ignoring " + shard + ": index has " + expected + " shards");
+            }
+        }
+        if (valid.size() != expected) {
+            throw new IOException("Index " + generation + " has " + valid.size() + " of " + expected + " shards");
+        }
+        return valid;
+    }
+
+    static boolean isShardDirectory(Path path) {
+        return Files.isDirectory(path) && path.getFileName().toString().matches(SHARD_PREFIX + "\\d+");
+    }
+
+    private static int shardNumber(Path shard) {
+        return Integer.parseInt(shard.getFileName().toString().substring(SHARD_PREFIX.length()));
+    }
+
+    /*
+    * Usage: ShardedIndexHandler <sourceDir> <numShards> [shard]
+    * Without a shard number all shards are indexed in parallel; with one, only that shard,
+    * so each shard can run as its own process.
+    * */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: ShardedIndexHandler <sourceDir> <numShards> [shard]");
+            return;
+        }
+        ShardedIndexHandler handler = new ShardedIndexHandler(Integer.parseInt(args[1]));
+        if (args.length > 2) {
+            handler.indexShard(new File(args[0]), Integer.parseInt(args[2]));
+        } else {
+            handler.index(new File(args[0]));
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package org.example;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * k-means++ over sparse document vectors. Points stay sparse and only the k centroids are
+ * dense, so memory grows with the corpus' non-zero entries rather than documents times
+ * vocabulary. Seeding distances and the assignment step run in chunks on the given pool;
+ * each new centroid is summed up by its own task.
+ * <p>
+ * Distances are Euclidean, as in commons-math's {@code KMeansPlusPlusClusterer}, computed as
+ * |x|^2 - 2 x.c + |c|^2 so a point never has to be expanded. A cluster that runs empty is
+ * reseeded with the point farthest from its centroid.
+ */
+final class SparseKMeans {
+    private final int k;
+    private final int maxIterations;
+    private final ExecutorService pool;
+    private final int chunks;
+    private final Random random;
+
+    private double[][] centroids;
+    private int[] assignment;
+
+    SparseKMeans(int k, int maxIterations, ExecutorService pool, int threads, Random random) {
+        if (k < 1) {
+            throw new IllegalArgumentException("Invalid number of clusters: " + k);
+        }
+        this.k = k;
+        this.maxIterations = maxIterations;
+        this.pool = pool;
+        this.chunks = Math.max(1, threads * 4);
+        this.random = random;
+    }
+
+    /**
+     * Clusters the points into k clusters
+     * @param points Points to cluster, at least k of them
+     * @param dimension Dimension of the vector space
+     * @throws InterruptedException If interrupted while waiting for the pool
+     * @throws ExecutionException If a task fails
+     */
+    void cluster(List<SparseVector> points, int dimension) throws InterruptedException, ExecutionException {
+        if (points.size() < k) {
+            throw new IllegalArgumentException("Got " + points.size() + " points for " + k + " clusters");
+        }
+        seed(points, dimension);
+
+        assignment = new int[points.size()];
+        Arrays.fill(assignment, -1);
+        double[] distances = new double[points.size()];
+        for (int iteration = 0; ; iteration++) {
+            int changed = assign(points, distances);
+            if (changed == 0 || iteration == maxIterations) {
+                break;
+            }
+            update(points, distances, dimension);
+        }
+    }
+
+    double[][] centroids() {
+        return centroids;
+    }
+
+    /*
+    * @Output Cluster of every point, in the order the points were given
+    * */
+    int[] assignment() {
+        return assignment;
+    }
+
+    // k-means++: every next centroid is drawn with probability proportional to its squared distance
+    private void seed(List<SparseVector> points, int dimension) throws InterruptedException, ExecutionException {
+        centroids = new double[k][];
+        centroids[0] = points.get(random.nextInt(points.size())).toDense(dimension);
+        double[] nearest = new double[points.size()];
+        Arrays.fill(nearest, Double.POSITIVE_INFINITY);
+
+        for (int c = 1; c <= k; c++) {
+            final double[] centroid = centroids[c - 1];
+            final double norm = squaredNorm(centroid);
+            forEachChunk(points.size(), (from, to) -> {
+                for (int i = from; i < to; i++) {
+                    nearest[i] = Math.min(nearest[i], distance(points.get(i), centroid, norm));
+                }
+                return 0;
+            });
+            if (c == k) {
+                break;
+            }
+
+            double total = 0;
+            for (double distance : nearest) {
+                total += distance;
+            }
+            int next = random.nextInt(points.size());
+            if (total > 0) {
+                double target = random.nextDouble() * total;
+                for (int i = 0; i < nearest.length; i++) {
+                    target -= nearest[i];
+                    if (target <= 0 && nearest[i] > 0) {
+                        next = i;
+                        break;
+                    }
+                }
+            }
+            centroids[c] = points.get(next).toDense(dimension);
+        }
+    }
+
+    // Moves every point to its nearest centroid; returns how many points changed cluster
+    private int assign(List<SparseVector> points, double[] distances) throws InterruptedException, ExecutionException {
+        double[] norms = new double[k];
+        for (int c = 0; c < k; c++) {
+            norms[c] = squaredNorm(centroids[c]);
+        }
+        return forEachChunk(points.size(), (from, to) -> {
+            int changed = 0;
+            for (int i = from; i < to; i++) {
+                int best = 0;
+                double bestDistance = Double.POSITIVE_INFINITY;
+                for (int c = 0; c < k; c++) {
+                    double distance = distance(points.get(i), centroids[c], norms[c]);
+                    if (distance < bestDistance) {
+                        best = c;
+                        bestDistance = distance;
+                    }
+                }
+                if (assignment[i] != best) {
+                    assignment[i] = best;
+                    changed++;
+                }
+                distances[i] = bestDistance;
+            }
+            return changed;
+        });
+    }
+
+    // Recomputes every centroid as the mean of its points, one task per cluster
+    private void update(List<SparseVector> points, double[] distances, int dimension)
+            throws InterruptedException, ExecutionException {
+        List<List<Integer>> members = new ArrayList<>(k);
+        for (int c = 0; c < k; c++) {
+            members.add(new ArrayList<>());
+        }
+        for (int i = 0; i < assignment.length; i++) {
+            members.get(assignment[i]).add(i);
+        }
+
+        List<Future<double[]>> tasks = new ArrayList<>(k);
+        for (int c = 0; c < k; c++) {
+            final List<Integer> cluster = members.get(c);
+            tasks.add(pool.submit(() -> {
+                if (cluster.isEmpty()) {
+                    return null;
+                }
+                double[] sum = new double[dimension];
+                for (int i : cluster) {
+                    points.get(i).addTo(sum);
+                }
+                for (int d = 0; d < dimension; d++) {
+                    sum[d] /= cluster.size();
+                }
+                return sum;
+            }));
+        }
+        for (int c = 0; c < k; c++) {
+            double[] centroid = tasks.get(c).get();
+            if (centroid == null) {
+                int farthest = 0;
+                for (int i = 1; i < distances.length; i++) {
+                    if (distances[i] > distances[farthest]) {
+                        farthest = i;
+                    }
+                }
+                // Not picked again by the next empty cluster
+                distances[farthest] = 0;
+                centroid = points.get(farthest).toDense(dimension);
+            }
+            centroids[c] = centroid;
+        }
+    }
+
+    private int forEachChunk(int size, ChunkTask task) throws InterruptedException, ExecutionException {
+        int chunkSize = (size + chunks - 1) / chunks;
+        List<Future<Integer>> tasks = new ArrayList<>();
+        for (int from = 0; from < size; from += chunkSize) {
+            final int start = from;
+            final int end = Math.min(size, from + chunkSize);
+            tasks.add(pool.submit(() -> task.run(start, end)));
+        }
+        int sum = 0;
+        for (Future<Integer> future : tasks) {
+            sum += future.get();
+        }
+        return sum;
+    }
+
+    private static double distance(SparseVector point, double[] centroid, double centroidNorm) {
+        return Math.max(0, point.squaredNorm() - 2 * point.dot(centroid) + centroidNorm);
+    }
+
+    static double squaredNorm(double[] vector) {
+        double norm = 0;
+        for (double value : vector) {
+            norm += value * value;
+        }
+        return norm;
+    }
+
+    // Works on points [from, to) and returns a count to sum up over all chunks
+    private interface ChunkTask {
+        int run(int from, int to);
+    }
+}
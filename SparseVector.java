@@ -0,0 +1,102 @@
+package org.example;
+
+import java.util.Arrays;
+
+/**
+ * TF-IDF vector that keeps only its non-zero entries. A document touches a few hundred of
+ * the vocabulary's dimensions, so the corpus is held as N of these instead of N dense
+ * vocabulary-sized arrays; only centroids are dense.
+ */
+final class SparseVector {
+    private final int[] indices;
+    private final double[] values;
+    private final double squaredNorm;
+
+    SparseVector(int[] indices, double[] values) {
+        if (indices.length != values.length) {
+            throw new IllegalArgumentException("Got " + indices.length + " indices for " + values.length + " values");
+        }
+        this.indices = indices;
+        this.values = values;
+        double norm = 0;
+        for (double value : values) {
+            norm += value * value;
+        }
+        this.squaredNorm = norm;
+    }
+
+    static SparseVector of(double[] dense) {
+        int nnz = 0;
+        for (double value : dense) {
+            if (value != 0) {
+                nnz++;
+            }
+        }
+        int[] indices = new int[nnz];
+        double[] values = new double[nnz];
+        int next = 0;
+        for (int i = 0; i < dense.length; i++) {
+            if (dense[i] != 0) {
+                indices[next] = i;
+                values[next++] = dense[i];
+            }
+        }
+        return new SparseVector(indices, values);
+    }
+
+    int size() {
+        return indices.length;
+    }
+
+    int index(int i) {
+        return indices[i];
+    }
+
+    double value(int i) {
+        return values[i];
+    }
+
+    double squaredNorm() {
+        return squaredNorm;
+    }
+
+    double dot(double[] dense) {
+        double dot = 0;
+        for (int i = 0; i < indices.length; i++) {
+            dot += values[i] * dense[indices[i]];
+        }
+        return dot;
+    }
+
+    /*
+    * @param dense Dense vector, e.g. a centroid
+    * @param denseSquaredNorm Its squared norm, computed once per centroid
+    * @Output Cosine similarity, 0 if either vector is zero
+    * */
+    double cosine(double[] dense, double denseSquaredNorm) {
+        if (squaredNorm == 0 || denseSquaredNorm == 0) {
+            return 0;
+        }
+        return dot(dense) / Math.sqrt(squaredNorm * denseSquaredNorm);
+    }
+
+    /*
+    * Adds this vector to a dense accumulator, e.g. a centroid being summed up
+    * */
+    void addTo(double[] dense) {
+        for (int i = 0; i < indices.length; i++) {
+            dense[indices[i]] += values[i];
+        }
+    }
+
+    double[] toDense(int dimension) {
+        double[] dense = new double[dimension];
+        addTo(dense);
+        return dense;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(indices) + "=" + Arrays.toString(values);
+    }
+}
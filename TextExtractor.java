@@ -1,7 +1,6 @@
 package org.example;
 
 import org.apache.lucene.analysis.TokenStream;
-import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 
 import java.io.*;
@@ -13,23 +12,43 @@ public class TextExtractor {
     * @Output String
     * */
     public String extract(String file) throws IOException {
-        StringBuilder string = new StringBuilder();
-        try(StandardAnalyzer analyzer = new StandardAnalyzer()){
-
-        TokenStream tokens = analyzer.tokenStream("text",new BufferedReader(new FileReader(file)));
-        CharTermAttribute termAttr = tokens.addAttribute(CharTermAttribute.class);
-        tokens.reset();
-        while (tokens.incrementToken()){
-            String s =  termAttr.toString();
-            string.append(s).append(" ");
-
+        // Tokens are never longer than the text, so size the buffer once from the file length
+        int capacity = (int) Math.min(new File(file).length(), Integer.MAX_VALUE - 8);
+        try (Reader reader = new BufferedReader(new FileReader(file))) {
+            return extract(reader, new StringBuilder(capacity));
         }
+    }
 
-
+    private String extract(Reader reader, StringBuilder string) throws IOException {
+        try (TokenStream tokens = Analyzers.standard().tokenStream("text", reader)) {
+            CharTermAttribute termAttr = tokens.addAttribute(CharTermAttribute.class);
+            tokens.reset();
+            while (tokens.incrementToken()) {
+                // Copy straight from the term buffer, no String per token
+                string.append(termAttr.buffer(), 0, termAttr.length()).append(' ');
+            }
+            tokens.end();
         }
         return string.toString();
     }
 
+    /*
+    * @param File
+    * @Output String, the file's text unchanged; this is what gets indexed, stored and highlighted
+    * */
+    public String read(String file) throws IOException {
+        int capacity = (int) Math.min(new File(file).length(), Integer.MAX_VALUE - 8);
+        StringBuilder text = new StringBuilder(capacity);
+        try (Reader reader = new FileReader(file)) {
+            char[] buffer = new char[8192];
+            int length;
+            while ((length = reader.read(buffer)) != -1) {
+                text.append(buffer, 0, length);
+            }
+        }
+        return text.toString();
+    }
+
     public static void main(String[] args) throws IOException {
         TextExtractor tx = new TextExtractor();
         System.out.println(tx.extract("example\\T7.txt"));